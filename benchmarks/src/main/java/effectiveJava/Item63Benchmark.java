@@ -0,0 +1,53 @@
+package effectiveJava;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Item63: 文字列連結(+=)と StringBuilder のコストを件数ごとに比較する。
+ * += は件数の2乗で効いてくるので、件数を変えたときの伸び方を見る。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+@State(Scope.Benchmark)
+public class Item63Benchmark {
+
+	@Param({ "100", "1000", "10000" })
+	public int numItems;
+
+	private Item63 lab;
+
+	@Setup
+	public void setup() {
+		lab = new Item63(numItems);
+	}
+
+	@Benchmark
+	public String slowStatement() {
+		return lab.slowStatement();
+	}
+
+	@Benchmark
+	public String fastStatement() {
+		return lab.fastStatement();
+	}
+
+	@Benchmark
+	public String pooledStatement() {
+		return lab.pooledStatement();
+	}
+}
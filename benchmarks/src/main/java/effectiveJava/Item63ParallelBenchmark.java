@@ -0,0 +1,60 @@
+package effectiveJava;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Item63: 並列版 parallelStatement のスピードアップを、プールのスレッド数ごとに逐次の fastStatement と比較する。
+ * マシンのコア数に合わせて -p parallelism=1,2,4,...,32 のように指定する。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 3, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class Item63ParallelBenchmark {
+
+	@Param({ "1000000", "10000000" })
+	public int numItems;
+
+	@Param({ "1", "2", "4", "8" })
+	public int parallelism;
+
+	private Item63 lab;
+	private ForkJoinPool pool;
+
+	@Setup
+	public void setup() {
+		lab = new Item63(numItems);
+		pool = new ForkJoinPool(parallelism);
+	}
+
+	@TearDown
+	public void tearDown() {
+		pool.shutdown();
+	}
+
+	@Benchmark
+	public String fastStatement() {
+		return lab.fastStatement();
+	}
+
+	@Benchmark
+	public String parallelStatement() {
+		return lab.parallelStatement(pool);
+	}
+}
@@ -0,0 +1,68 @@
+package effectiveJava;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Item63: 明細を String にまとめてから書き出す fastStatement と、チャンクごとに直接書き出す writeStatement の
+ * スループットを比較する。割り当て量は -prof gc、ピークヒープは Item63.main のストリーミング比較で確認する。
+ * チャネル版は、String を UTF-8 に変換して書く方法とバイト列を直接組み立てる方法の比較。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+@State(Scope.Benchmark)
+public class Item63StreamingBenchmark {
+
+	@Param({ "10000", "1000000" })
+	public int numItems;
+
+	private Item63 lab;
+	private final Writer writer = Writer.nullWriter();
+	private final WritableByteChannel channel = Channels.newChannel(OutputStream.nullOutputStream());
+
+	@Setup
+	public void setup() {
+		lab = new Item63(numItems);
+	}
+
+	@Benchmark
+	public void fastStatementToWriter() throws IOException {
+		writer.write(lab.fastStatement());
+	}
+
+	@Benchmark
+	public void writeStatementToWriter() throws IOException {
+		lab.writeStatement(writer);
+	}
+
+	@Benchmark
+	public void fastStatementToChannel() throws IOException {
+		channel.write(ByteBuffer.wrap(lab.fastStatement().getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Benchmark
+	public void writeStatementToChannel() throws IOException {
+		lab.writeStatement(channel);
+	}
+}
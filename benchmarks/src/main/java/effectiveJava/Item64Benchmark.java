@@ -0,0 +1,79 @@
+package effectiveJava;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Item64: Map の実装ごとに、空の UserService へユーザーを一括投入する時間を比較する。
+ * putOneByOne は容量の事前確保も並列化もしない、1件ずつ put する従来の方法。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 3, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class Item64Benchmark {
+
+	@Param({ "HashMap", "LinkedHashMap", "ConcurrentHashMap" })
+	public String map;
+
+	@Param({ "100000", "1000000" })
+	public int size;
+
+	private List<Item64.User> users;
+
+	@Setup
+	public void setup() {
+		users = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			users.add(new Item64.User("u" + i, "name" + (i % 1_000)));
+		}
+	}
+
+	@Benchmark
+	public Map<String, Item64.User> addUsers() {
+		Map<String, Item64.User> m = newMap();
+		new Item64.UserService(m).addUsers(users);
+		return m;
+	}
+
+	@Benchmark
+	public Map<String, Item64.User> putOneByOne() {
+		Map<String, Item64.User> m = newMap();
+		for (Item64.User u : users) {
+			m.put(u.getId(), u);
+		}
+		return m;
+	}
+
+	private Map<String, Item64.User> newMap() {
+		switch (map) {
+		case "HashMap":
+			return new HashMap<>();
+		case "LinkedHashMap":
+			return new LinkedHashMap<>();
+		case "ConcurrentHashMap":
+			return new ConcurrentHashMap<>();
+		default:
+			throw new IllegalArgumentException("unknown map: " + map);
+		}
+	}
+}
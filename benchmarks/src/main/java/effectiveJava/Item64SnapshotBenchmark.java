@@ -0,0 +1,118 @@
+package effectiveJava;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Item64: 書き手1スレッドが追加し続ける中で、読み手が「一貫した一覧」を取得するコストを比較する。
+ * snapshot は SnapshotUserStore の版の取得、lockedCopy はロックを取って HashMap 版の一覧をコピーする方法。
+ * 読み手のスレッド数ごとにグループを分けているので、読み手を増やしたときの伸び方を見る。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+@State(Scope.Group)
+public class Item64SnapshotBenchmark {
+
+	@Param({ "snapshot", "lockedCopy" })
+	public String impl;
+
+	private Item64.SnapshotUserStore snapshots;
+	private Item64.UserService locked;
+	private final Object lock = new Object();
+	private int nextId;
+
+	@Setup
+	public void setup() {
+		List<Item64.User> users = new ArrayList<>();
+		for (int i = 0; i < 10_000; i++) {
+			users.add(new Item64.User("u" + i, "name" + (i % 100)));
+		}
+		snapshots = new Item64.SnapshotUserStore();
+		snapshots.addUsers(users);
+		locked = new Item64.UserService(new HashMap<>());
+		locked.addUsers(users);
+	}
+
+	@Benchmark
+	@Group("readers1")
+	@GroupThreads(1)
+	public Collection<Item64.User> read1() {
+		return read();
+	}
+
+	@Benchmark
+	@Group("readers1")
+	@GroupThreads(1)
+	public void write1() {
+		write();
+	}
+
+	@Benchmark
+	@Group("readers4")
+	@GroupThreads(4)
+	public Collection<Item64.User> read4() {
+		return read();
+	}
+
+	@Benchmark
+	@Group("readers4")
+	@GroupThreads(1)
+	public void write4() {
+		write();
+	}
+
+	@Benchmark
+	@Group("readers8")
+	@GroupThreads(8)
+	public Collection<Item64.User> read8() {
+		return read();
+	}
+
+	@Benchmark
+	@Group("readers8")
+	@GroupThreads(1)
+	public void write8() {
+		write();
+	}
+
+	private Collection<Item64.User> read() {
+		if ("snapshot".equals(impl)) {
+			return snapshots.getAllUsers();
+		}
+		synchronized (lock) {
+			return new ArrayList<>(locked.getAllUsers());
+		}
+	}
+
+	// 書き手は1スレッドなので nextId の更新は競合しない。id を循環させて件数を一定に保つ
+	private void write() {
+		Item64.User u = new Item64.User("u" + (nextId++ % 10_000), "updated");
+		if ("snapshot".equals(impl)) {
+			snapshots.addUsers(List.of(u));
+		} else {
+			synchronized (lock) {
+				locked.addUsers(List.of(u));
+			}
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package effectiveJava;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Item66: SHA-256 を呼び出しごとに MessageDigest.getInstance する場合と、
+ * JavaCrypto のスレッドごとの使い回し・hashAll でのまとめ処理を、入力の大きさごとに比較する。
+ * 入力が小さいほど getInstance のコストが目立つはず。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+@State(Scope.Benchmark)
+public class Item66Benchmark {
+	// hashAll に1回で渡す件数
+	private static final int BATCH = 64;
+
+	@Param({ "64", "256", "1024", "4096" })
+	public int payloadSize;
+
+	private Item66.JavaCrypto crypto;
+	private byte[] payload;
+	private List<byte[]> batch;
+
+	@Setup
+	public void setup() {
+		crypto = new Item66.JavaCrypto();
+		Random random = new Random(66);
+		payload = new byte[payloadSize];
+		random.nextBytes(payload);
+		batch = new ArrayList<>();
+		for (int i = 0; i < BATCH; i++) {
+			byte[] b = new byte[payloadSize];
+			random.nextBytes(b);
+			batch.add(b);
+		}
+	}
+
+	// 変更前の JavaCrypto.hash と同じ処理
+	@Benchmark
+	public byte[] getInstancePerCall() throws NoSuchAlgorithmException {
+		return MessageDigest.getInstance("SHA-256").digest(payload);
+	}
+
+	@Benchmark
+	public byte[] threadLocalDigest() {
+		return crypto.hash(payload);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public byte[] hashAll() {
+		return crypto.hashAll(batch);
+	}
+}
@@ -0,0 +1,59 @@
+package effectiveJava;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Item66: JNI の NativeCrypto と JavaCrypto を、ヒープの byte[] と direct ByteBuffer の入力ごとに比較する。
+ * JNI の byte[] はコピー(またはピン留め)が入り、direct バッファはアドレスをそのまま渡すので、入力が大きいほど差が出るはず。
+ * impl=jni は -Djava.library.path で nativeCrypto を見つけられるときだけ動く(見つからなければ Setup で失敗する)。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+@State(Scope.Benchmark)
+public class Item66NativeBenchmark {
+
+	@Param({ "java", "jni" })
+	public String impl;
+
+	@Param({ "64", "1024", "16384" })
+	public int payloadSize;
+
+	private Item66.Crypto crypto;
+	private byte[] heap;
+	private ByteBuffer direct;
+
+	@Setup
+	public void setup() {
+		crypto = impl.equals("jni") ? new Item66.NativeCrypto() : new Item66.JavaCrypto();
+		heap = new byte[payloadSize];
+		new Random(66).nextBytes(heap);
+		direct = ByteBuffer.allocateDirect(payloadSize).put(heap).flip();
+	}
+
+	@Benchmark
+	public byte[] heapArray() {
+		return crypto.hash(heap);
+	}
+
+	@Benchmark
+	public byte[] directBuffer() {
+		return crypto.hash(direct);
+	}
+}
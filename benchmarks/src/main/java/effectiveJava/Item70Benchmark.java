@@ -0,0 +1,91 @@
+package effectiveJava;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Item70: 1つの口座から複数スレッドが同時に引き出すときの withdraw() を、CAS(指数バックオフつき)と synchronized で比較する。
+ * 残高は計測中に尽きないよう十分大きくしている。スレッド数ごとにメソッドを分けているのは Item78Benchmark と同じ理由。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+@State(Scope.Benchmark)
+public class Item70Benchmark {
+
+	@Param({ "cas", "synchronized" })
+	public String impl;
+
+	private Item70.Account account;
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		switch (impl) {
+		case "cas":
+			account = new Item70.ConcurrentBankAccount(Long.MAX_VALUE);
+			break;
+		case "synchronized":
+			account = new Item70.SynchronizedBankAccount(Long.MAX_VALUE);
+			break;
+		default:
+			throw new IllegalArgumentException("unknown impl: " + impl);
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void threads01() throws Item70.InsufficientFundsException {
+		account.withdraw(1);
+	}
+
+	@Benchmark
+	@Threads(2)
+	public void threads02() throws Item70.InsufficientFundsException {
+		account.withdraw(1);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void threads04() throws Item70.InsufficientFundsException {
+		account.withdraw(1);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public void threads08() throws Item70.InsufficientFundsException {
+		account.withdraw(1);
+	}
+
+	@Benchmark
+	@Threads(16)
+	public void threads16() throws Item70.InsufficientFundsException {
+		account.withdraw(1);
+	}
+
+	@Benchmark
+	@Threads(32)
+	public void threads32() throws Item70.InsufficientFundsException {
+		account.withdraw(1);
+	}
+
+	@Benchmark
+	@Threads(64)
+	public void threads64() throws Item70.InsufficientFundsException {
+		account.withdraw(1);
+	}
+}
@@ -0,0 +1,82 @@
+package effectiveJava;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Item78: 3種類の Counter の increment() を、同じインスタンスを共有するスレッド数を変えて比較する。
+ * JMH のスレッド数はメソッド単位でしか指定できないため、スレッド数ごとにメソッドを分けている。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+@State(Scope.Benchmark)
+public class Item78Benchmark {
+
+	@Param({ "unsafe", "synchronized", "atomic" })
+	public String impl;
+
+	private Item78.Counter counter;
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		switch (impl) {
+		case "unsafe":
+			counter = new Item78.UnsafeCounter();
+			break;
+		case "synchronized":
+			counter = new Item78.SynchronizedCounter();
+			break;
+		case "atomic":
+			counter = new Item78.AtomicIntergerCounter();
+			break;
+		default:
+			throw new IllegalArgumentException("unknown impl: " + impl);
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void threads01() {
+		counter.increment();
+	}
+
+	@Benchmark
+	@Threads(2)
+	public void threads02() {
+		counter.increment();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void threads04() {
+		counter.increment();
+	}
+
+	@Benchmark
+	@Threads(8)
+	public void threads08() {
+		counter.increment();
+	}
+
+	@Benchmark
+	@Threads(16)
+	public void threads16() {
+		counter.increment();
+	}
+}
@@ -0,0 +1,45 @@
+package effectiveJava;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Item79: ロック内で模擬I/O(100ms)を行う LongLockStore と、書き換えの瞬間だけ同期する MinimalSyncStore を、
+ * 5スレッドで同じストアを叩いたときの updateData() の遅延分布で比較する。
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(2)
+@Threads(5)
+@State(Scope.Benchmark)
+public class Item79Benchmark {
+
+	@Param({ "longLock", "minimalSync" })
+	public String impl;
+
+	private Item79.DataStore store;
+
+	@Setup
+	public void setup() {
+		store = "longLock".equals(impl) ? new Item79.LongLockStore() : new Item79.MinimalSyncStore();
+	}
+
+	@Benchmark
+	public void updateData() {
+		store.updateData();
+	}
+}
@@ -0,0 +1,90 @@
+package effectiveJava;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Item81: wait/notify の BadBuffer と ArrayBlockingQueue(どちらも容量10)の受け渡しスループットを比較する。
+ * 計測スレッドが put し、裏のコンシューマースレッドが take し続ける。
+ * take は割り込みでは抜けられないので、終了時は番兵を put してコンシューマーを止める。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+public class Item81Benchmark {
+	private static final String POISON = "POISON";
+
+	@State(Scope.Benchmark)
+	public static class BadBufferState {
+		final BadBuffer buffer = new BadBuffer();
+		private Thread consumer;
+
+		@Setup(Level.Iteration)
+		public void start() {
+			consumer = new Thread(() -> {
+				while (buffer.take() != POISON) {
+					// 取り出すだけ
+				}
+			});
+			consumer.start();
+		}
+
+		@TearDown(Level.Iteration)
+		public void stop() throws InterruptedException {
+			buffer.put(POISON);
+			consumer.join();
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class BlockingQueueState {
+		final BlockingQueue<String> queue = new ArrayBlockingQueue<>(10);
+		private Thread consumer;
+
+		@Setup(Level.Iteration)
+		public void start() {
+			consumer = new Thread(() -> {
+				try {
+					while (queue.take() != POISON) {
+						// 取り出すだけ
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			consumer.start();
+		}
+
+		@TearDown(Level.Iteration)
+		public void stop() throws InterruptedException {
+			queue.put(POISON);
+			consumer.join();
+		}
+	}
+
+	@Benchmark
+	public void badBuffer(BadBufferState state) {
+		state.buffer.put("data");
+	}
+
+	@Benchmark
+	public void arrayBlockingQueue(BlockingQueueState state) throws InterruptedException {
+		state.queue.put("data");
+	}
+}
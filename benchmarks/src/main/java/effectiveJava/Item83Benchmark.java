@@ -0,0 +1,57 @@
+package effectiveJava;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Item83: 初期化済みの SafeHolder.getInstance() のアクセスコストを、
+ * 同期なしの遅延初期化(初期化済み)や単なるフィールド読み出しと比較する。
+ * Holder idiom は初期化後は同期もチェックも不要なので、フィールド読み出しと同等になるはず。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+@Threads(4)
+@State(Scope.Benchmark)
+public class Item83Benchmark {
+
+	private Item83.UnsafeLazy unsafeLazy;
+	private Item83.HeavyResource eager;
+
+	@Setup
+	public void setup() {
+		// 計測前に Holder クラスの初期化を済ませておく
+		Item83.SafeHolder.getInstance();
+		unsafeLazy = new Item83.UnsafeLazy();
+		unsafeLazy.get();
+		eager = new Item83.HeavyResource();
+	}
+
+	@Benchmark
+	public Object safeHolder() {
+		return Item83.SafeHolder.getInstance();
+	}
+
+	@Benchmark
+	public Object unsafeLazy() {
+		return unsafeLazy.get();
+	}
+
+	@Benchmark
+	public Object fieldRead() {
+		return eager;
+	}
+}
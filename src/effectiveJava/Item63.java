@@ -1,35 +1,258 @@
 package effectiveJava;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+import utils.Benchmark;
+import utils.BenchmarkStore;
 import utils.StopWatch;
 
 public class Item63 {
-	public static void main(String[] args) {
-		Item63 lab = new Item63(); // 自分のインスタンスを作る
-		StopWatch sw = new StopWatch();
+	// ストリーミング出力で一度に溜める文字数。件数によらずこれ以上は保持しない
+	private static final int CHUNK_CHARS = 8 * 1024;
+
+	private static final String LINE_PREFIX = "Item description ";
+	// 1行の最大文字数(接頭辞 + int の最大桁数 + 改行)
+	private static final int MAX_LINE_CHARS = LINE_PREFIX.length() + 10 + 1;
+	// これより大きく育ったバッファはスレッドに持たせ続けない
+	private static final int MAX_POOLED_CHARS = 4 * 1024 * 1024;
+
+	// この件数未満は並列化のオーバーヘッドの方が大きいので逐次版を使う
+	private static final int PARALLEL_THRESHOLD = 100_000;
+	// 並列版で1タスクが担当する件数
+	private static final int PARALLEL_LEAF_ITEMS = 16_384;
+
+	// 定数部分は起動時に一度だけ UTF-8 にしておく(数字と改行は ASCII なので UTF-8 でも1文字1バイト)
+	private static final byte[] LINE_PREFIX_BYTES = LINE_PREFIX.getBytes(StandardCharsets.UTF_8);
+	// チャネルへ一度に書き出すバイト数
+	private static final int CHANNEL_BATCH_BYTES = 256 * 1024;
+
+	// スレッドごとに使い回す書き出し用のダイレクトバッファ(チャネルへの書き込み時に追加のコピーが起きない)
+	private static final ThreadLocal<ByteBuffer> DIRECT_BUFFER = ThreadLocal
+			.withInitial(() -> ByteBuffer.allocateDirect(CHANNEL_BATCH_BYTES));
+
+	// スレッドごとに使い回す明細バッファ
+	private static final ThreadLocal<StringBuilder> POOLED_BUFFER = ThreadLocal.withInitial(StringBuilder::new);
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		// 1回の start/stop では JIT の状態や外乱で数字が大きくぶれるため、
+		// ウォームアップ後に複数回計測し、別JVMにフォークして分布で比較する
+		Benchmark bench = new Benchmark(3, 10, 2);
 
 		// 悪い例
-		sw.start();
-		lab.slowStatement(); // インスタンス経由で呼ぶ
-		sw.stop("String (+=)");
+		bench.run("String (+=)", SlowStatementTask.class);
 
 		// 良い例
+		bench.run("StringBuilder", FastStatementTask.class);
+
+		// 良い例 + スレッドごとのバッファ再利用
+		bench.run("StringBuilder (再利用)", PooledStatementTask.class);
+
+		// 1行あたりの割り当てバイト数で見ると、+= の遅さは文字列の作り直し(割り当てとコピー)が原因だと分かる
+		Item63 lab = new Item63();
+		StopWatch sw = new StopWatch();
 		sw.start();
-		lab.fastStatement(); // インスタンス経由で呼ぶ
-		sw.stop("StringBuilder");
+		lab.slowStatement();
+		sw.stop("String (+=)", lab.numItems());
 
-		// 結果：
+		sw.start();
+		lab.fastStatement();
+		sw.stop("StringBuilder", lab.numItems());
+
+		lab.pooledStatement(); // バッファを温めておく
+		sw.start();
+		lab.pooledStatement();
+		sw.stop("StringBuilder (再利用)", lab.numItems());
+
+		// 件数を増やすと、全体を1つの String にする方法はピークヒープが件数に比例して増えるが、
+		// ストリーミングは一定のまま
+		Item63 large = new Item63(2_000_000);
+		System.gc();
+		sw.start();
+		OutputStream.nullOutputStream().write(large.fastStatement().getBytes(StandardCharsets.UTF_8));
+		sw.stop("StringBuilder (2M件)", large.numItems());
+
+		System.gc();
+		sw.start();
+		large.writeStatement(OutputStream.nullOutputStream());
+		sw.stop("ストリーミング (2M件)", large.numItems());
+
+		// ファイルへの書き出し: String を UTF-8 に変換して書く方法と、バイト列を直接組み立てる方法
+		Path expected = Files.createTempFile("item63-string", ".txt");
+		Path actual = Files.createTempFile("item63-bytes", ".txt");
+		try {
+			System.gc();
+			sw.start();
+			Files.write(expected, large.fastStatement().getBytes(StandardCharsets.UTF_8));
+			sw.stop("String -> UTF-8 (2M件)", large.numItems());
+
+			System.gc();
+			sw.start();
+			try (FileChannel ch = FileChannel.open(actual, StandardOpenOption.WRITE)) {
+				large.writeStatement(ch);
+			}
+			sw.stop("バイト列を直接書き出し (2M件)", large.numItems());
+
+			System.out.println("出力が同一か: " + Arrays.equals(Files.readAllBytes(expected), Files.readAllBytes(actual)));
+		} finally {
+			Files.deleteIfExists(expected);
+			Files.deleteIfExists(actual);
+		}
+
+		// 並列版のスピードアップをコア数ごとに見る
+		Item63 huge = new Item63(2_000_000);
+		// 回帰比較(U 検定)に使うので、サンプル数は 8 にする
+		Benchmark parallelBench = new Benchmark(2, 8);
+		parallelBench.run("StringBuilder (2M件)", () -> Benchmark.consume(huge.fastStatement()));
+		for (int p = 1; p <= Runtime.getRuntime().availableProcessors(); p *= 2) {
+			ForkJoinPool pool = new ForkJoinPool(p);
+			parallelBench.run("並列 (2M件, " + p + "スレッド)", () -> Benchmark.consume(huge.parallelStatement(pool)));
+			// ワーカーが次の計測の途中で終了すると割り当てが数えられないので、終了を待つ
+			pool.shutdown();
+			pool.awaitTermination(1, TimeUnit.MINUTES);
+		}
+
+		// -Dbenchmark.save / -Dbenchmark.baseline を指定すると、逐次版と並列版の両方を保存・回帰比較する
+		List<Benchmark.Result> results = bench.getResults();
+		results.addAll(parallelBench.getResults());
+		BenchmarkStore.report(results);
+
+		// 結果(1回計測の頃)：
 		//	[String (+=)] 実行時間: 201.767 ms
 		//	[StringBuilder] 実行時間: 1.493 ms
 	}
 
+	// フォーク先のJVMで生成されるため、public な引数なしコンストラクタを持つ
+	public static class SlowStatementTask implements Benchmark.Task {
+		private final Item63 lab = new Item63(); // 自分のインスタンスを作る
+
+		@Override
+		public void run() {
+			Benchmark.consume(lab.slowStatement()); // インスタンス経由で呼ぶ
+		}
+	}
+
+	public static class FastStatementTask implements Benchmark.Task {
+		private final Item63 lab = new Item63();
+
+		@Override
+		public void run() {
+			Benchmark.consume(lab.fastStatement());
+		}
+	}
+
+	public static class PooledStatementTask implements Benchmark.Task {
+		private final Item63 lab = new Item63();
+
+		@Override
+		public void run() {
+			Benchmark.consume(lab.pooledStatement());
+		}
+	}
+
+	private final int numItems;
+
+	public Item63() {
+		this(10_000);
+	}
+
+	// ベンチマークで件数を変えて比較できるようにする
+	public Item63(int numItems) {
+		if (numItems < 0) {
+			throw new IllegalArgumentException("numItems must be >= 0");
+		}
+		this.numItems = numItems;
+	}
+
 	private int numItems() {
-		return 10_000;
+		return numItems;
 	}
 
 	private String lineForItem(int i) {
 		return "Item description " + i + "\n";
 	}
 
+	// lineForItem と同じ内容を、一時的な String を作らずに b へ直接追記する
+	// (StringBuilder.append(int) は桁を直接バッファに書き込むので割り当てが発生しない)
+	private static void appendLine(StringBuilder b, int i) {
+		b.append(LINE_PREFIX).append(i).append('\n');
+	}
+
+	// 明細全体の正確な文字数
+	long statementLength() {
+		return lengthBefore(numItems);
+	}
+
+	// 0..n-1 行目の文字数の合計(= n 行目の開始位置)。桁数ごとに件数を数えて求める
+	private static long lengthBefore(long n) {
+		long digits = 0;
+		long lower = 0;
+		long upper = 10;
+		for (int width = 1; n > lower; width++) {
+			digits += (Math.min(n, upper) - lower) * width;
+			lower = upper;
+			upper *= 10;
+		}
+		return n * (LINE_PREFIX.length() + 1) + digits;
+	}
+
+	// lineForItem(i) と同じ内容を ASCII で dst[pos..] に書き、書き終えた位置を返す
+	private static int putLine(byte[] dst, int pos, int i) {
+		System.arraycopy(LINE_PREFIX_BYTES, 0, dst, pos, LINE_PREFIX_BYTES.length);
+		pos += LINE_PREFIX_BYTES.length;
+		int width = 1;
+		for (int v = i; v >= 10; v /= 10) {
+			width++;
+		}
+		int end = pos + width;
+		int v = i;
+		for (int p = end - 1; p >= pos; p--) {
+			dst[p] = (byte) ('0' + v % 10);
+			v /= 10;
+		}
+		dst[end] = '\n';
+		return end + 1;
+	}
+
+	// putLine のダイレクトバッファ版。数字は末尾の桁から絶対位置で書き込む
+	private static void putLine(ByteBuffer dst, int i) {
+		dst.put(LINE_PREFIX_BYTES);
+		int width = 1;
+		for (int v = i; v >= 10; v /= 10) {
+			width++;
+		}
+		int start = dst.position();
+		int v = i;
+		for (int p = start + width - 1; p >= start; p--) {
+			dst.put(p, (byte) ('0' + v % 10));
+			v /= 10;
+		}
+		dst.position(start + width);
+		dst.put((byte) '\n');
+	}
+
+	private int statementCapacity() {
+		long length = statementLength();
+		if (length > Integer.MAX_VALUE - 8) {
+			throw new IllegalStateException("statement too large for a String: " + length + " chars");
+		}
+		return (int) length;
+	}
+
 	// 悪い例
 	public String slowStatement() {
 		String result = "";
@@ -39,12 +262,141 @@ public class Item63 {
 		return result;
 	}
 
-	// 良い例
+	// 良い例(最終的な長さで確保しておき、倍々の拡張と行ごとの一時 String をなくす)
 	public String fastStatement() {
-		StringBuilder b = new StringBuilder();
+		StringBuilder b = new StringBuilder(statementCapacity());
+		appendStatement(b);
+		return b.toString();
+	}
+
+	/**
+	 * 呼び出し側のバッファに明細を追記する。同じバッファを使い回せば、1行ごとのゴミは出ない。
+	 */
+	public void appendStatement(StringBuilder b) {
+		b.ensureCapacity(b.length() + statementCapacity());
 		for (int i = 0; i < numItems(); i++) {
-			b.append(lineForItem(i));
+			appendLine(b, i);
 		}
-		return b.toString();
+	}
+
+	/**
+	 * スレッドごとのバッファを使い回して明細を作る。定常状態で割り当てられるのは戻り値の String だけ。
+	 */
+	public String pooledStatement() {
+		StringBuilder b = POOLED_BUFFER.get();
+		b.setLength(0);
+		appendStatement(b);
+		String result = b.toString();
+		if (b.capacity() > MAX_POOLED_CHARS) {
+			POOLED_BUFFER.remove();
+		}
+		return result;
+	}
+
+	/**
+	 * 共通プールで明細を並列に作る。
+	 */
+	public String parallelStatement() {
+		return parallelStatement(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * 0..numItems の範囲を分割して pool で並列に描画する。件数が PARALLEL_THRESHOLD 未満なら fastStatement と同じ。
+	 * 各行の開始位置は桁数から計算できるので、各チャンクは最終的な配列の自分の区間に直接書き込む。
+	 * チャンクごとのバッファを後から連結するコピーが要らず、コピーは String 化の1回だけになる。
+	 */
+	public String parallelStatement(ForkJoinPool pool) {
+		if (numItems() < PARALLEL_THRESHOLD) {
+			return fastStatement();
+		}
+		byte[] dst = new byte[statementCapacity()];
+		pool.invoke(new RenderTask(dst, 0, numItems()));
+		// 全て ASCII なので ISO-8859-1 でそのまま(Latin-1 の String として)文字にする
+		return new String(dst, StandardCharsets.ISO_8859_1);
+	}
+
+	@SuppressWarnings("serial")
+	private static class RenderTask extends RecursiveAction {
+		private final byte[] dst;
+		private final int from;
+		private final int to;
+
+		RenderTask(byte[] dst, int from, int to) {
+			this.dst = dst;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= PARALLEL_LEAF_ITEMS) {
+				int pos = (int) lengthBefore(from);
+				for (int i = from; i < to; i++) {
+					pos = putLine(dst, pos, i);
+				}
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new RenderTask(dst, from, mid), new RenderTask(dst, mid, to));
+		}
+	}
+
+	/**
+	 * 明細全体を String にせず、CHUNK_CHARS 文字ずつ out に書き出す。
+	 * 保持するのは固定長のバッファだけなので、件数が増えてもピークメモリは変わらない。
+	 * out は flush も close もしない。
+	 */
+	public void writeStatement(Writer out) throws IOException {
+		StringBuilder chunk = new StringBuilder(CHUNK_CHARS);
+		char[] buf = new char[CHUNK_CHARS];
+		for (int i = 0; i < numItems(); i++) {
+			if (chunk.length() > CHUNK_CHARS - MAX_LINE_CHARS) {
+				flushChunk(chunk, buf, out);
+			}
+			appendLine(chunk, i);
+		}
+		flushChunk(chunk, buf, out);
+	}
+
+	// Writer.append(CharSequence) は内部で String を作るので、char[] 経由で書き出す
+	private static void flushChunk(StringBuilder chunk, char[] buf, Writer out) throws IOException {
+		int len = chunk.length();
+		chunk.getChars(0, len, buf, 0);
+		out.write(buf, 0, len);
+		chunk.setLength(0);
+	}
+
+	/**
+	 * UTF-8 で out に書き出す。エンコーダが持つバッファ分だけを flush し、out は close しない。
+	 */
+	public void writeStatement(OutputStream out) throws IOException {
+		Writer w = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+		writeStatement(w);
+		w.flush();
+	}
+
+	/**
+	 * UTF-8 で channel に書き出す。channel は close しない。
+	 * 文字列を経由せず、事前にエンコードした接頭辞と ASCII の数字をダイレクトバッファに直接書き込み、
+	 * CHANNEL_BATCH_BYTES ごとにまとめて write する。出力は fastStatement().getBytes(UTF_8) と同一。
+	 */
+	public void writeStatement(WritableByteChannel channel) throws IOException {
+		ByteBuffer buf = DIRECT_BUFFER.get();
+		buf.clear();
+		for (int i = 0; i < numItems(); i++) {
+			if (buf.remaining() < MAX_LINE_CHARS) {
+				drain(buf, channel);
+			}
+			putLine(buf, i);
+		}
+		drain(buf, channel);
+	}
+
+	private static void drain(ByteBuffer buf, WritableByteChannel channel) throws IOException {
+		buf.flip();
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+		buf.clear();
 	}
 }
\ No newline at end of file
@@ -1,22 +1,114 @@
 package effectiveJava;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import utils.Benchmark;
+import utils.StopWatch;
 
 public class Item64 {
 
-	public static void main(String[] args) {
+	public static void main(String[] args) throws IOException {
 		// Mapインターフェースを実装している具象型ならなんでもOK
 		UserService svc = new UserService(new ConcurrentHashMap<>()); // ConcurrentHashMap(具象型)
 		UserService svc2 = new UserService(new LinkedHashMap<>()); // LinkedHashMap(具象型)
 		UserService svc3 = new UserService(new HashMap<>()); // HashMap(具象型)
+
+		// 大量投入: どの実装でも同じ addUsers で、容量の事前確保と(ConcurrentMap なら)並列投入が効く
+		List<User> bulk = new ArrayList<>();
+		for (int i = 0; i < 1_000_000; i++) {
+			bulk.add(new User("u" + i, "name" + (i % 1_000)));
+		}
+		Benchmark bench = new Benchmark(2, 5);
+		bench.run("ConcurrentHashMap", () -> new UserService(new ConcurrentHashMap<>()).addUsers(bulk));
+		bench.run("LinkedHashMap", () -> new UserService(new LinkedHashMap<>()).addUsers(bulk));
+		bench.run("HashMap", () -> new UserService(new HashMap<>()).addUsers(bulk));
+
+		// 名前での入力補完: 全件を走査せず、名前索引の範囲だけを読む
+		UserService indexed = new UserService(new ConcurrentHashMap<>(), true);
+		indexed.addUsers(bulk);
+		System.out.println("\"name99\" で始まる名前のユーザー数: " + indexed.findByNamePrefix("name99").size());
+		System.out.println("\"name42\" のユーザー数: " + indexed.findByName("name42").size());
+
+		// スナップショット: 読み手は書き込み中でも、取得した時点の一覧を矛盾なく最後まで読める
+		SnapshotUserStore snapshots = new SnapshotUserStore();
+		snapshots.addUsers(bulk.subList(0, 1_000));
+		Snapshot v1 = snapshots.snapshot();
+		snapshots.addUsers(bulk.subList(1_000, 2_000));
+		System.out.printf("版 %d: %d件, 最新の版 %d: %d件%n",
+				v1.getVersion(), v1.size(), snapshots.snapshot().getVersion(), snapshots.getAllUsers().size());
+
+		// 保存形式が違っても、UserStore インターフェースで参照していれば呼び出し側は同じ
+		System.out.printf("HashMap 版のヒープ使用量 (1M件): %.1f MB%n", retainedHeapMb(new UserService(new HashMap<>())));
+		System.out.printf("カラム型のヒープ使用量 (1M件): %.1f MB%n", retainedHeapMb(new ColumnarUserStore()));
+
+		// 起動の高速化: addUsers で作り直す代わりに、保存したファイルをマップして開く
+		Path file = Files.createTempFile("users", ".bin");
+		file.toFile().deleteOnExit();
+		MappedUserStore.write(file, bulk);
+		StopWatch sw = new StopWatch();
+		sw.start();
+		UserService rebuilt = new UserService(new HashMap<>());
+		rebuilt.addUsers(bulk);
+		rebuilt.findById("u123456");
+		sw.stop("addUsers で再構築 + 1件検索");
+		sw.start();
+		MappedUserStore mapped = MappedUserStore.open(file);
+		mapped.findById("u123456");
+		sw.stop("マップして開く + 1件検索");
+		mapped.addUsers(List.of(new User("u123456", "renamed"), new User("new1", "name1")));
+		System.out.printf("マップ版: %d件, u123456 の名前: %s, ファイルサイズ: %.1f MB%n",
+				mapped.getAllUsers().size(), mapped.findById("u123456").get().getName(),
+				Files.size(file) / (1024.0 * 1024.0));
 	}
 
-	private static class User {
+	// 1M件を少しずつ投入したあと、store が保持しているヒープ(GC後の増分)。投入元の User は都度捨てる
+	private static double retainedHeapMb(UserStore store) {
+		Runtime rt = Runtime.getRuntime();
+		System.gc();
+		long before = rt.totalMemory() - rt.freeMemory();
+		for (int base = 0; base < 1_000_000; base += 10_000) {
+			List<User> chunk = new ArrayList<>();
+			for (int i = base; i < base + 10_000; i++) {
+				chunk.add(new User("u" + i, "name" + (i % 1_000)));
+			}
+			store.addUsers(chunk);
+		}
+		System.gc();
+		long after = rt.totalMemory() - rt.freeMemory();
+		Benchmark.consume(store);
+		return (after - before) / (1024.0 * 1024.0);
+	}
+
+	static class User {
 		private final String id;
 		private final String name;
 
@@ -28,23 +120,892 @@ public class Item64 {
 		public String getId() {
 			return this.id;
 		}
+
+		public String getName() {
+			return this.name;
+		}
 	}
 
-	private static class UserService {
+	// ユーザーの保存先。呼び出し側はこのインターフェースだけを参照する
+	interface UserStore {
+		Collection<User> getAllUsers();
+
+		void addUsers(Collection<User> newUsers);
+
+		Optional<User> findById(String id);
+	}
+
+	static class UserService implements UserStore {
+		// この件数以上のときだけ ConcurrentMap への投入を並列化する
+		private static final int PARALLEL_THRESHOLD = 10_000;
+		// 並列投入で1タスクが担当する件数
+		private static final int LEAF_USERS = 4_096;
+
+		// 名前索引のキーは「名前 + '\0' + id」。同名のユーザーが並び、名前の順に範囲検索できる
+		private static final char NAME_ID_SEPARATOR = '\0';
+
 		private final Map<String, User> users;
+		// 名前索引を使わない場合は null(索引の維持には投入時間とメモリがかかるため)
+		private final ConcurrentSkipListMap<String, User> nameIndex;
 
 		public UserService(Map<String, User> users) {
+			this(users, false);
+		}
+
+		// indexByName: 名前での検索(findByName / findByNamePrefix)のための索引を持つかどうか
+		public UserService(Map<String, User> users, boolean indexByName) {
 			this.users = users;
+			this.nameIndex = indexByName ? new ConcurrentSkipListMap<>() : null;
+			if (indexByName) {
+				users.values().forEach(u -> nameIndex.put(nameKey(u), u));
+			}
 		}
 
 		public Collection<User> getAllUsers() {
 			return Collections.unmodifiableCollection(users.values());
 		}
 
+		public Optional<User> findById(String id) {
+			return Optional.ofNullable(users.get(id));
+		}
+
+		/**
+		 * 名前が完全一致するユーザー。索引の二分探索 + 該当件数分の走査で、全件は見ない。
+		 */
+		public Collection<User> findByName(String name) {
+			requireNameIndex();
+			return Collections.unmodifiableCollection(
+					nameIndex.subMap(name + NAME_ID_SEPARATOR, true, name + (char) (NAME_ID_SEPARATOR + 1), false)
+							.values());
+		}
+
+		/**
+		 * 名前が prefix で始まるユーザー(名前順)。入力補完向け。
+		 */
+		public Collection<User> findByNamePrefix(String prefix) {
+			requireNameIndex();
+			return Collections.unmodifiableCollection(
+					nameIndex.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values());
+		}
+
+		/**
+		 * 追加件数から先に容量を確保し、再ハッシュを1回で済ませてから投入する。
+		 * ConcurrentMap で件数が多い場合は fork-join で並列に投入し、それ以外の Map は1スレッドで投入する。
+		 * どちらの場合も、同じ id は Map.put と同じく後勝ち。
+		 */
+		public void addUsers(Collection<User> newUsers) {
+			presize(users, users.size() + newUsers.size());
+			if (users instanceof ConcurrentMap && newUsers.size() >= PARALLEL_THRESHOLD) {
+				User[] batch = newUsers.toArray(new User[0]);
+				Set<String> replaced = ConcurrentHashMap.newKeySet();
+				ForkJoinPool.commonPool().invoke(new IngestTask(this, batch, 0, batch.length, replaced));
+				// 並列投入では同じ id のどれが残るか決まらないので、置き換えが起きた id だけ最後の出現で書き直す。
+				// 置き換えがなければ(重複も既存 id の更新もなければ)このループはすぐ終わる
+				for (int i = batch.length - 1; i >= 0 && !replaced.isEmpty(); i--) {
+					if (replaced.remove(batch[i].getId())) {
+						put(batch[i]);
+					}
+				}
+			} else if (nameIndex == null) {
+				users.putAll(new UsersById(newUsers));
+			} else {
+				for (User u : newUsers) {
+					put(u);
+				}
+			}
+		}
+
+		// 名前索引の更新は id ごとの compute の中で行う。ConcurrentHashMap では同じ id の compute は直列化されるので、
+		// 複数スレッドが同じ id を更新しても索引と本体の最終状態は一致する。
+		// 新しいキーを足してから古いキーを消すので、読み手から一瞬も見えなくなることはない(両方見えることはある)
+		// 置き換えた User を返す(なければ null)
+		private User put(User u) {
+			if (nameIndex == null) {
+				return users.put(u.getId(), u);
+			}
+			User[] replaced = new User[1];
+			users.compute(u.getId(), (id, old) -> {
+				nameIndex.put(nameKey(u), u);
+				if (old != null && !old.getName().equals(u.getName())) {
+					nameIndex.remove(nameKey(old), old);
+				}
+				replaced[0] = old;
+				return u;
+			});
+			return replaced[0];
+		}
+
+		private void requireNameIndex() {
+			if (nameIndex == null) {
+				throw new IllegalStateException("name index is disabled; create UserService with indexByName = true");
+			}
+		}
+
+		private static String nameKey(User u) {
+			return u.getName() + NAME_ID_SEPARATOR + u.getId();
+		}
+
+		// HashMap と ConcurrentHashMap の putAll は、要素を詰める前に引数の size() から一度だけ表を広げる。
+		// 要素を持たず size() だけを返す Map を渡すことで、既存の Map に容量の予約だけをさせる
+		private static void presize(Map<String, User> map, int expectedSize) {
+			map.putAll(new UsersById(Collections.emptyList()) {
+				@Override
+				public int size() {
+					return expectedSize;
+				}
+			});
+		}
+	}
+
+	/**
+	 * id と名前をオブジェクトではなく配列に詰めて持つ UserStore(カラム型)。
+	 * <ul>
+	 * <li>id は UTF-8 のバイト列を1本の byte[] に連結し、スロットごとの開始位置を int[] で持つ</li>
+	 * <li>名前は辞書化し、スロットには辞書の番号(int)だけを持つ。同じ名前の文字列は1つしか保持しない</li>
+	 * <li>id からスロットへの索引は int[] のオープンアドレス法で、Map.Entry も Integer も作らない</li>
+	 * </ul>
+	 * User 1件あたりのヘッダやエントリが無くなるため、1ユーザーあたりのヒープは id のバイト数 + 十数バイトになる。
+	 * getAllUsers が返すのは、要素を取り出すときに User を組み立てる読み取り専用のビュー。
+	 * 名前は辞書の String をそのまま共有するが、User と id の String は要素ごとに作る(短命なので young 世代で消える)。
+	 * 保持し続けるのはカラムの配列だけ、というのがこのストアの狙い。
+	 */
+	static class ColumnarUserStore implements UserStore {
+		private byte[] idBytes = new byte[1024];
+		private int idBytesUsed;
+		// スロット i の id は idBytes[idOffsets[i] .. idOffsets[i + 1])
+		private int[] idOffsets = new int[17];
+		private int[] nameCodes = new int[16];
+		private int size;
+		// getAllUsers のビューが今の nameCodes を参照している。既存スロットを書き換える前に複製する(コピーオンライト)
+		private boolean nameCodesShared;
+
+		private final Map<String, Integer> nameToCode = new HashMap<>();
+		private String[] names = new String[16];
+
+		// 値は「スロット番号 + 1」。0 は空き。負荷率は 1/2 以下に保つ
+		private int[] index = new int[32];
+
+		@Override
+		public synchronized void addUsers(Collection<User> newUsers) {
+			ensureSlots(size + newUsers.size());
+			for (User u : newUsers) {
+				byte[] id = u.getId().getBytes(StandardCharsets.UTF_8);
+				int code = nameCode(u.getName());
+				int slot = find(id);
+				if (slot >= 0) {
+					// Map.put と同じく、同じ id は後勝ち
+					if (nameCodes[slot] != code) {
+						if (nameCodesShared) {
+							nameCodes = nameCodes.clone();
+							nameCodesShared = false;
+						}
+						nameCodes[slot] = code;
+					}
+				} else {
+					append(id, code);
+				}
+			}
+		}
+
+		@Override
+		public synchronized Optional<User> findById(String id) {
+			int slot = find(id.getBytes(StandardCharsets.UTF_8));
+			return (slot < 0) ? Optional.empty() : Optional.of(userAt(slot));
+		}
+
+		/**
+		 * 呼び出し時点の内容を読む、読み取り専用のビュー(O(1) で作れる)。
+		 * id と辞書の配列は count より後ろに追記されるだけで、nameCodes は書き換え前に複製されるので、
+		 * その後の追加も既存 id の名前の更新も見えない。
+		 */
+		@Override
+		public synchronized Collection<User> getAllUsers() {
+			nameCodesShared = true;
+			int count = size;
+			byte[] ids = idBytes;
+			int[] offsets = idOffsets;
+			int[] codes = nameCodes;
+			String[] dict = names;
+			return new AbstractCollection<>() {
+				@Override
+				public int size() {
+					return count;
+				}
+
+				@Override
+				public Iterator<User> iterator() {
+					return new Iterator<>() {
+						private int next;
+
+						@Override
+						public boolean hasNext() {
+							return next < count;
+						}
+
+						@Override
+						public User next() {
+							if (next >= count) {
+								throw new NoSuchElementException();
+							}
+							int slot = next++;
+							String id = new String(ids, offsets[slot], offsets[slot + 1] - offsets[slot],
+									StandardCharsets.UTF_8);
+							return new User(id, dict[codes[slot]]);
+						}
+					};
+				}
+			};
+		}
+
+		private User userAt(int slot) {
+			String id = new String(idBytes, idOffsets[slot], idOffsets[slot + 1] - idOffsets[slot],
+					StandardCharsets.UTF_8);
+			return new User(id, names[nameCodes[slot]]);
+		}
+
+		private int nameCode(String name) {
+			Integer code = nameToCode.get(name);
+			if (code != null) {
+				return code;
+			}
+			int newCode = nameToCode.size();
+			if (newCode == names.length) {
+				names = Arrays.copyOf(names, newCode * 2);
+			}
+			names[newCode] = name;
+			nameToCode.put(name, newCode);
+			return newCode;
+		}
+
+		private void append(byte[] id, int code) {
+			if (idBytesUsed + id.length > idBytes.length) {
+				idBytes = Arrays.copyOf(idBytes, Math.max(idBytes.length * 2, idBytesUsed + id.length));
+			}
+			System.arraycopy(id, 0, idBytes, idBytesUsed, id.length);
+			// idOffsets[size] は前の append で書いてあるので、ビューが読む範囲には書き込まない
+			idBytesUsed += id.length;
+			idOffsets[size + 1] = idBytesUsed;
+			nameCodes[size] = code;
+			insertIndex(hash(idBytes, idOffsets[size], id.length), size);
+			size++;
+		}
+
+		// スロット配列と索引を expected 件まで入るように広げる(索引の作り直しは1回で済む)
+		private void ensureSlots(int expected) {
+			if (expected > nameCodes.length) {
+				int capacity = Math.max(expected, nameCodes.length * 2);
+				nameCodes = Arrays.copyOf(nameCodes, capacity);
+				nameCodesShared = false;
+				idOffsets = Arrays.copyOf(idOffsets, capacity + 1);
+			}
+			if (expected * 2 > index.length) {
+				index = new int[Integer.highestOneBit(expected * 2 - 1) << 1];
+				for (int slot = 0; slot < size; slot++) {
+					insertIndex(hash(idBytes, idOffsets[slot], idOffsets[slot + 1] - idOffsets[slot]), slot);
+				}
+			}
+		}
+
+		private void insertIndex(int hash, int slot) {
+			int mask = index.length - 1;
+			int i = hash & mask;
+			while (index[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			index[i] = slot + 1;
+		}
+
+		private int find(byte[] id) {
+			int mask = index.length - 1;
+			for (int i = hash(id, 0, id.length) & mask; index[i] != 0; i = (i + 1) & mask) {
+				int slot = index[i] - 1;
+				int from = idOffsets[slot];
+				int to = idOffsets[slot + 1];
+				if (Arrays.equals(idBytes, from, to, id, 0, id.length)) {
+					return slot;
+				}
+			}
+			return -1;
+		}
+
+		// FNV-1a。線形探索で偏らないよう最後に上位ビットを混ぜる
+		private static int hash(byte[] bytes, int from, int length) {
+			int h = 0x811c9dc5;
+			for (int i = from; i < from + length; i++) {
+				h = (h ^ bytes[i]) * 0x01000193;
+			}
+			return h ^ (h >>> 16);
+		}
+	}
+
+	/**
+	 * 読み手に「ある時点のユーザー一覧」を不変のまま渡す UserStore。
+	 * 中身は構造共有する永続ハッシュトライ(HAMT)で、追加時は変わった経路のノードだけをコピーする。
+	 * 書き手は新しい版を作って AtomicReference の CAS で公開し、読み手は参照を1回読むだけ(O(1)、ロックなし)で
+	 * 版番号つきのスナップショットを得る。スナップショットは後の追加の影響を受けない。
+	 */
+	static class SnapshotUserStore implements UserStore {
+		private final AtomicReference<Snapshot> current = new AtomicReference<>(Snapshot.EMPTY);
+
+		public Snapshot snapshot() {
+			return current.get();
+		}
+
+		@Override
+		public Collection<User> getAllUsers() {
+			return current.get();
+		}
+
+		@Override
+		public Optional<User> findById(String id) {
+			return current.get().findById(id);
+		}
+
+		// 他の書き手と競合した場合は、最新の版に対してやり直す
+		@Override
+		public void addUsers(Collection<User> newUsers) {
+			while (true) {
+				Snapshot base = current.get();
+				Snapshot next = base.with(newUsers);
+				if (current.compareAndSet(base, next)) {
+					return;
+				}
+			}
+		}
+	}
+
+	// ある版のユーザー一覧(不変)
+	static final class Snapshot extends AbstractCollection<User> {
+		static final Snapshot EMPTY = new Snapshot(0, TrieNode.EMPTY, 0);
+
+		private final long version;
+		private final TrieNode root;
+		private final int size;
+
+		private Snapshot(long version, TrieNode root, int size) {
+			this.version = version;
+			this.root = root;
+			this.size = size;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		public Optional<User> findById(String id) {
+			return Optional.ofNullable(root.get(id, TrieNode.hash(id), 0));
+		}
+
+		Snapshot with(Collection<User> users) {
+			TrieNode r = root;
+			int n = size;
+			boolean[] added = new boolean[1];
+			for (User u : users) {
+				added[0] = false;
+				r = r.put(u, TrieNode.hash(u.getId()), 0, added);
+				if (added[0]) {
+					n++;
+				}
+			}
+			return new Snapshot(version + 1, r, n);
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public Iterator<User> iterator() {
+			return new TrieIterator(root);
+		}
+	}
+
+	// HAMT のノード。slots の要素は User(葉)か TrieNode(部分木)
+	private static final class TrieNode {
+		static final TrieNode EMPTY = new TrieNode(0, new Object[0], false);
+
+		private static final int BITS = 5;
+		private static final int MASK = (1 << BITS) - 1;
+
+		// どのハッシュ断片(5ビット)が使われているか。衝突ノードでは使わない
+		private final int bitmap;
+		private final Object[] slots;
+		// ハッシュ値が全ビット一致した User を並べるだけのノード
+		private final boolean collision;
+
+		private TrieNode(int bitmap, Object[] slots, boolean collision) {
+			this.bitmap = bitmap;
+			this.slots = slots;
+			this.collision = collision;
+		}
+
+		static int hash(String id) {
+			int h = id.hashCode();
+			return h ^ (h >>> 16);
+		}
+
+		User get(String id, int hash, int shift) {
+			if (collision) {
+				for (Object o : slots) {
+					if (((User) o).getId().equals(id)) {
+						return (User) o;
+					}
+				}
+				return null;
+			}
+			int bit = 1 << ((hash >>> shift) & MASK);
+			if ((bitmap & bit) == 0) {
+				return null;
+			}
+			Object o = slots[Integer.bitCount(bitmap & (bit - 1))];
+			if (o instanceof TrieNode) {
+				return ((TrieNode) o).get(id, hash, shift + BITS);
+			}
+			User u = (User) o;
+			return u.getId().equals(id) ? u : null;
+		}
+
+		// u を加えた新しいノードを返す(this は変更しない)。新しい id だった場合は added[0] を true にする
+		TrieNode put(User u, int hash, int shift, boolean[] added) {
+			if (collision) {
+				for (int i = 0; i < slots.length; i++) {
+					if (((User) slots[i]).getId().equals(u.getId())) {
+						return new TrieNode(0, replaced(slots, i, u), true);
+					}
+				}
+				added[0] = true;
+				return new TrieNode(0, inserted(slots, slots.length, u), true);
+			}
+			int bit = 1 << ((hash >>> shift) & MASK);
+			int idx = Integer.bitCount(bitmap & (bit - 1));
+			if ((bitmap & bit) == 0) {
+				added[0] = true;
+				return new TrieNode(bitmap | bit, inserted(slots, idx, u), false);
+			}
+			Object o = slots[idx];
+			if (o instanceof TrieNode) {
+				return new TrieNode(bitmap, replaced(slots, idx, ((TrieNode) o).put(u, hash, shift + BITS, added)), false);
+			}
+			User existing = (User) o;
+			if (existing.getId().equals(u.getId())) {
+				return new TrieNode(bitmap, replaced(slots, idx, u), false);
+			}
+			added[0] = true;
+			TrieNode child = merge(existing, hash(existing.getId()), u, hash, shift + BITS);
+			return new TrieNode(bitmap, replaced(slots, idx, child), false);
+		}
+
+		private static TrieNode merge(User a, int hashA, User b, int hashB, int shift) {
+			if (shift >= Integer.SIZE) {
+				return new TrieNode(0, new Object[] { a, b }, true);
+			}
+			int fragA = (hashA >>> shift) & MASK;
+			int fragB = (hashB >>> shift) & MASK;
+			if (fragA == fragB) {
+				return new TrieNode(1 << fragA, new Object[] { merge(a, hashA, b, hashB, shift + BITS) }, false);
+			}
+			Object[] pair = (fragA < fragB) ? new Object[] { a, b } : new Object[] { b, a };
+			return new TrieNode((1 << fragA) | (1 << fragB), pair, false);
+		}
+
+		private static Object[] replaced(Object[] src, int idx, Object value) {
+			Object[] copy = src.clone();
+			copy[idx] = value;
+			return copy;
+		}
+
+		private static Object[] inserted(Object[] src, int idx, Object value) {
+			Object[] copy = new Object[src.length + 1];
+			System.arraycopy(src, 0, copy, 0, idx);
+			copy[idx] = value;
+			System.arraycopy(src, idx, copy, idx + 1, src.length - idx);
+			return copy;
+		}
+	}
+
+	// トライを深さ優先でたどる。深さはハッシュのビット数で決まるので、固定長のスタックで足りる
+	private static final class TrieIterator implements Iterator<User> {
+		private final Object[][] stack = new Object[Integer.SIZE / TrieNode.BITS + 2][];
+		private final int[] positions = new int[stack.length];
+		private int depth;
+		private User next;
+
+		TrieIterator(TrieNode root) {
+			stack[0] = root.slots;
+			advance();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public User next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			User result = next;
+			advance();
+			return result;
+		}
+
+		private void advance() {
+			next = null;
+			while (depth >= 0) {
+				Object[] slots = stack[depth];
+				if (positions[depth] == slots.length) {
+					depth--;
+					continue;
+				}
+				Object o = slots[positions[depth]++];
+				if (o instanceof TrieNode) {
+					depth++;
+					stack[depth] = ((TrieNode) o).slots;
+					positions[depth] = 0;
+				} else {
+					next = (User) o;
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * ファイルに保存したユーザー一覧を FileChannel.map で開き、マップした領域から直接引く UserStore。
+	 * 起動時に全件を User に復元しないので、開くのは件数によらずほぼ一瞬で、読んだページだけがページキャッシュから載る。
+	 * 開いたあとの追加はヒープ上のオーバーレイに入り、検索ではオーバーレイを先に見る(同じ id はオーバーレイが勝つ)。
+	 *
+	 * ファイル形式(ビッグエンディアン):
+	 * <ul>
+	 * <li>ヘッダ: マジック, 版, 件数, ハッシュ表のスロット数(2のべき乗)</li>
+	 * <li>ハッシュ表: スロットごとに (id のハッシュ, レコードの位置)。位置 0 は空き。負荷率は 1/2 以下</li>
+	 * <li>レコード: id の長さ(u16), id(UTF-8), 名前の長さ(u16), 名前(UTF-8)</li>
+	 * </ul>
+	 * 1つの MappedByteBuffer で扱えるのは 2GB までなので、ファイルもそれ以下に限る。
+	 * マップの解放は GC 任せ(Java 17 には明示的に unmap する公開 API がない)なので、開いているファイルを
+	 * 上書きしないこと。保存し直すときは別のファイルに書いてから置き換える。
+	 */
+	static class MappedUserStore implements UserStore {
+		private static final int MAGIC = 0x454A5531; // "EJU1"
+		private static final int VERSION = 1;
+		private static final int HEADER_BYTES = 16;
+		private static final int SLOT_BYTES = 8;
+		private static final int MAX_FIELD_BYTES = 0xFFFF;
+		// レコードの書き出しに使うバッファの大きさ
+		private static final int WRITE_BUFFER_BYTES = 256 * 1024;
+
+		// 位置指定の get だけを使うので、複数スレッドから同時に読んでよい
+		private final MappedByteBuffer map;
+		private final int count;
+		private final int mask;
+		private final int recordsStart;
+
+		private final ConcurrentMap<String, User> overlay = new ConcurrentHashMap<>();
+		// オーバーレイのうち、ファイルにない id の件数(size() 用)
+		private final AtomicInteger addedIds = new AtomicInteger();
+
+		private MappedUserStore(MappedByteBuffer map) {
+			this.map = map;
+			this.count = map.getInt(8);
+			int tableSize = map.getInt(12);
+			this.mask = tableSize - 1;
+			this.recordsStart = HEADER_BYTES + tableSize * SLOT_BYTES;
+		}
+
+		/**
+		 * users を file に書き出す。id は重複していないこと(UserStore.getAllUsers の結果ならそうなっている)。
+		 */
+		public static void write(Path file, Collection<User> users) throws IOException {
+			int expected = users.size();
+			int tableSize = Integer.highestOneBit(Math.max(expected, 1) * 2 - 1) << 1;
+			ByteBuffer table = ByteBuffer.allocate(HEADER_BYTES + tableSize * SLOT_BYTES);
+			long position = table.capacity();
+			int written = 0;
+
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				// 表の位置を空けてレコードを先に書き、最後に表とヘッダを先頭に書く(表だけをメモリに持てばよい)
+				channel.position(position);
+				ByteBuffer buf = ByteBuffer.allocate(WRITE_BUFFER_BYTES);
+				for (User u : users) {
+					if (written == expected) {
+						throw new IllegalArgumentException("users changed while writing");
+					}
+					byte[] id = u.getId().getBytes(StandardCharsets.UTF_8);
+					byte[] name = u.getName().getBytes(StandardCharsets.UTF_8);
+					if (id.length > MAX_FIELD_BYTES || name.length > MAX_FIELD_BYTES) {
+						throw new IllegalArgumentException("id or name longer than " + MAX_FIELD_BYTES + " bytes: " + u.getId());
+					}
+					int recordBytes = 4 + id.length + name.length;
+					if (position + recordBytes > Integer.MAX_VALUE) {
+						throw new IOException("user file would exceed 2GB: " + file);
+					}
+					if (buf.remaining() < recordBytes) {
+						drain(buf, channel);
+						if (buf.capacity() < recordBytes) {
+							buf = ByteBuffer.allocate(recordBytes);
+						}
+					}
+					int h = hash(id);
+					int slot = h & (tableSize - 1);
+					while (table.getInt(HEADER_BYTES + slot * SLOT_BYTES + 4) != 0) {
+						slot = (slot + 1) & (tableSize - 1);
+					}
+					table.putInt(HEADER_BYTES + slot * SLOT_BYTES, h);
+					table.putInt(HEADER_BYTES + slot * SLOT_BYTES + 4, (int) position);
+					buf.putShort((short) id.length).put(id).putShort((short) name.length).put(name);
+					position += recordBytes;
+					written++;
+				}
+				drain(buf, channel);
+				if (written != expected) {
+					throw new IllegalArgumentException("users changed while writing");
+				}
+
+				table.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, written).putInt(12, tableSize);
+				channel.position(0);
+				while (table.hasRemaining()) {
+					channel.write(table);
+				}
+			}
+		}
+
+		/**
+		 * write で書いたファイルを読み取り専用でマップする。レコードはここでは読まない。
+		 */
+		public static MappedUserStore open(Path file) throws IOException {
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				long size = channel.size();
+				if (size > Integer.MAX_VALUE) {
+					throw new IOException("user file larger than 2GB: " + file);
+				}
+				if (size < HEADER_BYTES) {
+					throw new IOException("not a user file: " + file);
+				}
+				// マップはチャネルを閉じても有効
+				MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+				if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+					throw new IOException("not a user file: " + file);
+				}
+				int tableSize = map.getInt(12);
+				if (Integer.bitCount(tableSize) != 1 || HEADER_BYTES + (long) tableSize * SLOT_BYTES > size) {
+					throw new IOException("corrupt user file: " + file);
+				}
+				return new MappedUserStore(map);
+			}
+		}
+
+		@Override
 		public void addUsers(Collection<User> newUsers) {
 			for (User u : newUsers) {
-				users.put(u.getId(), u);
+				// 同じ新しい id を複数スレッドが同時に入れても、null を受け取るのは1スレッドだけ
+				if (overlay.put(u.getId(), u) == null && !inFile(u.getId())) {
+					addedIds.incrementAndGet();
+				}
+			}
+		}
+
+		@Override
+		public Optional<User> findById(String id) {
+			User u = overlay.get(id);
+			if (u != null) {
+				return Optional.of(u);
+			}
+			int pos = findRecord(id.getBytes(StandardCharsets.UTF_8));
+			return (pos < 0) ? Optional.empty() : Optional.of(userAt(pos));
+		}
+
+		/**
+		 * ファイルのレコード(オーバーレイで上書きされたものを除く)を順に読み、続けてオーバーレイを返すビュー。
+		 * 要素は取り出すときに組み立てる。読んでいる間の追加は見えることも見えないこともある。
+		 */
+		@Override
+		public Collection<User> getAllUsers() {
+			return new AbstractCollection<>() {
+				@Override
+				public int size() {
+					return count + addedIds.get();
+				}
+
+				@Override
+				public Iterator<User> iterator() {
+					Iterator<User> added = overlay.values().iterator();
+					return new Iterator<>() {
+						private int read;
+						private int pos = recordsStart;
+						private User next = advance();
+
+						@Override
+						public boolean hasNext() {
+							return next != null;
+						}
+
+						@Override
+						public User next() {
+							if (next == null) {
+								throw new NoSuchElementException();
+							}
+							User u = next;
+							next = advance();
+							return u;
+						}
+
+						private User advance() {
+							while (read < count) {
+								User u = userAt(pos);
+								pos = recordEnd(pos);
+								read++;
+								if (!overlay.containsKey(u.getId())) {
+									return u;
+								}
+							}
+							return added.hasNext() ? added.next() : null;
+						}
+					};
+				}
+			};
+		}
+
+		private boolean inFile(String id) {
+			return findRecord(id.getBytes(StandardCharsets.UTF_8)) >= 0;
+		}
+
+		// id のレコードの位置。ハッシュが一致したスロットだけレコードを読みに行くので、触るページが少ない
+		private int findRecord(byte[] id) {
+			int h = hash(id);
+			for (int slot = h & mask;; slot = (slot + 1) & mask) {
+				int entry = HEADER_BYTES + slot * SLOT_BYTES;
+				int pos = map.getInt(entry + 4);
+				if (pos == 0) {
+					return -1;
+				}
+				if (map.getInt(entry) == h && idEquals(pos, id)) {
+					return pos;
+				}
+			}
+		}
+
+		private boolean idEquals(int pos, byte[] id) {
+			if (Short.toUnsignedInt(map.getShort(pos)) != id.length) {
+				return false;
+			}
+			for (int i = 0; i < id.length; i++) {
+				if (map.get(pos + 2 + i) != id[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private int recordEnd(int pos) {
+			int namePos = pos + 2 + Short.toUnsignedInt(map.getShort(pos));
+			return namePos + 2 + Short.toUnsignedInt(map.getShort(namePos));
+		}
+
+		private User userAt(int pos) {
+			int idLength = Short.toUnsignedInt(map.getShort(pos));
+			int namePos = pos + 2 + idLength;
+			int nameLength = Short.toUnsignedInt(map.getShort(namePos));
+			byte[] id = new byte[idLength];
+			byte[] name = new byte[nameLength];
+			map.get(pos + 2, id);
+			map.get(namePos + 2, name);
+			return new User(new String(id, StandardCharsets.UTF_8), new String(name, StandardCharsets.UTF_8));
+		}
+
+		// ファイル形式の一部(版 1)。変えるときは VERSION を上げること。
+		// FNV-1a の最後に上位ビットを混ぜて、線形探索で偏らないようにする
+		private static int hash(byte[] bytes) {
+			int h = 0x811c9dc5;
+			for (byte b : bytes) {
+				h = (h ^ b) * 0x01000193;
+			}
+			return h ^ (h >>> 16);
+		}
+
+		private static void drain(ByteBuffer buf, FileChannel channel) throws IOException {
+			buf.flip();
+			while (buf.hasRemaining()) {
+				channel.write(buf);
+			}
+			buf.clear();
+		}
+	}
+
+	// User のコレクションを id をキーとする Map として見せるビュー(コピーしない)
+	private static class UsersById extends AbstractMap<String, User> {
+		private final Collection<User> users;
+
+		UsersById(Collection<User> users) {
+			this.users = users;
+		}
+
+		@Override
+		public int size() {
+			return users.size();
+		}
+
+		@Override
+		public Set<Entry<String, User>> entrySet() {
+			return new AbstractSet<>() {
+				@Override
+				public int size() {
+					return UsersById.this.size();
+				}
+
+				@Override
+				public Iterator<Entry<String, User>> iterator() {
+					Iterator<User> it = users.iterator();
+					return new Iterator<>() {
+						@Override
+						public boolean hasNext() {
+							return it.hasNext();
+						}
+
+						@Override
+						public Entry<String, User> next() {
+							User u = it.next();
+							return new SimpleImmutableEntry<>(u.getId(), u);
+						}
+					};
+				}
+			};
+		}
+	}
+
+	// ConcurrentMap への並列投入
+	// replaced には、既存の値を置き換えた id を集める(後勝ちに直すため)
+	@SuppressWarnings("serial")
+	private static class IngestTask extends RecursiveAction {
+		private final UserService service;
+		private final User[] batch;
+		private final int from;
+		private final int to;
+		private final Set<String> replaced;
+
+		IngestTask(UserService service, User[] batch, int from, int to, Set<String> replaced) {
+			this.service = service;
+			this.batch = batch;
+			this.from = from;
+			this.to = to;
+			this.replaced = replaced;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= UserService.LEAF_USERS) {
+				for (int i = from; i < to; i++) {
+					if (service.put(batch[i]) != null) {
+						replaced.add(batch[i].getId());
+					}
+				}
+				return;
 			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new IngestTask(service, batch, from, mid, replaced),
+					new IngestTask(service, batch, mid, to, replaced));
 		}
 	}
 }
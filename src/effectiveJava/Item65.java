@@ -1,8 +1,54 @@
 package effectiveJava;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import utils.LatencyHistogram;
+import utils.StopWatch;
+
 public class Item65 {
+	// 負荷デモのクライアント数と1クライアントあたりの決済数
+	private static final int CLIENTS = 64;
+	private static final int CHECKOUTS_PER_CLIENT = 50;
+	// 過負荷のシミュレーション: クライアント数・時間・この時間内に返れば「役に立った」とみなす締め切り
+	private static final int OVERLOAD_CLIENTS = 200;
+	private static final long OVERLOAD_MILLIS = 3_000;
+	private static final long DEADLINE_MILLIS = 50;
+	// ヘッジのデモ: クライアント数と1クライアントあたりの呼び出し数
+	private static final int HEDGE_CLIENTS = 8;
+	private static final int CALLS_PER_HEDGE_CLIENT = 500;
+	// 冪等化のデモ: 同じ要求を送り直すクライアント数と、要求の種類
+	private static final int RETRYING_CLIENTS = 16;
+	private static final int DISTINCT_REQUESTS = 100;
 
-	public static void main(String[] args) {
+	public static void main(String[] args) throws Exception {
 		// 起動時に差し替え（Composition Root）
 		// ※通常この切り替えは、DIで行う
 		PaymentProcessor p = new StripePaymentProcessor(); // 本番
@@ -11,19 +57,352 @@ public class Item65 {
 
 		PaymentRequest req = new PaymentRequest();
 		svc.checkout(req);
+
+		// 1回あたりのオーバーヘッドが大きい決済先: 同時接続4本、1呼び出し 5ms + 1件 20µs
+		PaymentProcessor remote = new SimulatedPaymentProcessor(4, 5_000, 20);
+		try (CheckoutService batching = new CheckoutService(remote, 64, 2)) {
+			runClients("同期 checkout", () -> batching.checkout(new PaymentRequest()));
+			runClients("非同期 checkoutAsync (まとめて処理)", () -> batching.checkoutAsync(new PaymentRequest()).join());
+		}
+
+		// 過負荷: 同時処理8本の決済先に200クライアントが殺到すると、待ち行列が伸びて全員が遅くなる
+		simulateOverload("制限なし", new DegradingPaymentProcessor(8, 2_000));
+		simulateOverload("適応的な同時実行制限あり",
+				new ConcurrencyLimitingPaymentProcessor(new DegradingPaymentProcessor(8, 2_000), 20, 1, 200, 5));
+
+		// ヘッジ: 2%の確率で50msかかる決済先を2つ用意し、主系が p95 を過ぎても返らなければ副系にも送る
+		ExecutorService hedgeExecutor = Executors.newCachedThreadPool();
+		measureTail("主系のみ", new HeavyTailedPaymentProcessor(1_000, 50_000, 0.02));
+		HedgingPaymentProcessor hedging = new HedgingPaymentProcessor(new HeavyTailedPaymentProcessor(1_000, 50_000, 0.02),
+				new HeavyTailedPaymentProcessor(1_000, 50_000, 0.02), hedgeExecutor, 95, 0.1);
+		// 主系の分布がたまるまではヘッジしないので、計測の前に呼んでおく
+		for (int i = 0; i < 1_000; i++) {
+			hedging.process(new PaymentRequest());
+		}
+		measureTail("ヘッジあり", hedging);
+		System.out.printf("ヘッジした割合: %.1f%%%n", 100.0 * hedging.getHedgeCount() / hedging.getCallCount());
+		hedgeExecutor.shutdown();
+
+		// 冪等化: 16クライアントが同じ100件の要求を送り直しても、決済先には100回しか届かない
+		AtomicInteger remoteCalls = new AtomicInteger();
+		PaymentProcessor payments = new SimulatedPaymentProcessor(RETRYING_CLIENTS, 1_000, 0);
+		PaymentProcessor counting = r -> {
+			remoteCalls.incrementAndGet();
+			return payments.process(r);
+		};
+		IdempotentPaymentProcessor idempotent = new IdempotentPaymentProcessor(counting, 10_000, 60_000);
+		CheckoutService deduplicating = new CheckoutService(idempotent);
+		ExecutorService retrying = Executors.newFixedThreadPool(RETRYING_CLIENTS);
+		List<Future<?>> sent = new ArrayList<>();
+		for (int c = 0; c < RETRYING_CLIENTS; c++) {
+			sent.add(retrying.submit(() -> {
+				for (int i = 0; i < DISTINCT_REQUESTS; i++) {
+					deduplicating.checkout(new PaymentRequest("order-" + i));
+				}
+			}));
+		}
+		for (Future<?> f : sent) {
+			f.get();
+		}
+		retrying.shutdown();
+		System.out.printf("要求: %d回, 決済先の呼び出し: %d回, キャッシュ: %d件%n",
+				RETRYING_CLIENTS * DISTINCT_REQUESTS, remoteCalls.get(), idempotent.size());
+
+		// 計測: 実装ごとのメトリクスを JMX で公開する(jconsole などからも同じ値が見える)
+		InstrumentedPaymentProcessor stripe = new InstrumentedPaymentProcessor(new StripePaymentProcessor());
+		InstrumentedPaymentProcessor stub = new InstrumentedPaymentProcessor(new HeavyTailedPaymentProcessor(200, 5_000, 0.05));
+		ObjectName stripeName = stripe.register("StripePaymentProcessor");
+		ObjectName stubName = stub.register("HeavyTailedPaymentProcessor");
+		for (int i = 0; i < 1_000; i++) {
+			stripe.process(new PaymentRequest());
+			stub.process(new PaymentRequest());
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName name : List.of(stripeName, stubName)) {
+			System.out.printf("%s: 呼び出し %s回, エラー %s回, p50 %s µs, p99 %s µs%n", name,
+					server.getAttribute(name, "CallCount"), server.getAttribute(name, "ErrorCount"),
+					server.getAttribute(name, "P50Micros"), server.getAttribute(name, "P99Micros"));
+			server.unregisterMBean(name);
+		}
+	}
+
+	// HEDGE_CLIENTS 本のスレッドから順に呼び出し、レイテンシの裾(p99, p99.9)を表示する
+	private static void measureTail(String label, PaymentProcessor processor) throws Exception {
+		LatencyHistogram latency = new LatencyHistogram();
+		ExecutorService clients = Executors.newFixedThreadPool(HEDGE_CLIENTS);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int c = 0; c < HEDGE_CLIENTS; c++) {
+			futures.add(clients.submit(() -> {
+				for (int i = 0; i < CALLS_PER_HEDGE_CLIENT; i++) {
+					long start = System.nanoTime();
+					processor.process(new PaymentRequest());
+					latency.recordSince(start);
+				}
+			}));
+		}
+		for (Future<?> f : futures) {
+			f.get();
+		}
+		clients.shutdown();
+		latency.print(label);
+	}
+
+	// OVERLOAD_CLIENTS 本のスレッドが決済し続け、締め切り内に返った件数(goodput)と成功分のレイテンシ分布を表示する
+	private static void simulateOverload(String label, PaymentProcessor processor) throws Exception {
+		LatencyHistogram latency = new LatencyHistogram();
+		AtomicLong good = new AtomicLong();
+		AtomicLong rejected = new AtomicLong();
+		long deadlineNanos = TimeUnit.MILLISECONDS.toNanos(DEADLINE_MILLIS);
+		long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(OVERLOAD_MILLIS);
+		ExecutorService clients = Executors.newFixedThreadPool(OVERLOAD_CLIENTS);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int c = 0; c < OVERLOAD_CLIENTS; c++) {
+			futures.add(clients.submit(() -> {
+				while (System.nanoTime() < end) {
+					long start = System.nanoTime();
+					try {
+						processor.process(new PaymentRequest());
+					} catch (RejectedExecutionException e) {
+						// 断られたクライアントは少し待ってから再試行する
+						rejected.incrementAndGet();
+						sleepQuietly(1);
+						continue;
+					}
+					long elapsed = System.nanoTime() - start;
+					latency.record(elapsed);
+					if (elapsed <= deadlineNanos) {
+						good.incrementAndGet();
+					}
+				}
+			}));
+		}
+		for (Future<?> f : futures) {
+			f.get();
+		}
+		clients.shutdown();
+		System.out.printf("[%s] goodput(%dms以内): %.0f 件/秒, 拒否: %d件%n",
+				label, DEADLINE_MILLIS, good.get() * 1000.0 / OVERLOAD_MILLIS, rejected.get());
+		latency.print(label);
+	}
+
+	private static void sleepQuietly(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// CLIENTS 本のスレッドから同時に決済し、全体のスループットを表示する
+	private static void runClients(String label, Runnable checkout) throws Exception {
+		ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+		StopWatch sw = new StopWatch();
+		sw.start();
+		long start = System.nanoTime();
+		List<Future<?>> futures = new ArrayList<>();
+		for (int c = 0; c < CLIENTS; c++) {
+			futures.add(clients.submit(() -> {
+				for (int i = 0; i < CHECKOUTS_PER_CLIENT; i++) {
+					checkout.run();
+				}
+			}));
+		}
+		for (Future<?> f : futures) {
+			f.get();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		sw.stop(label, CLIENTS * CHECKOUTS_PER_CLIENT);
+		System.out.printf("[%s] スループット: %.0f 件/秒%n", label, CLIENTS * CHECKOUTS_PER_CLIENT / seconds);
+		// 次の計測区間の中でスレッドが終了すると、その区間のCPU時間と割り当てが不明になるので終了を待つ
+		clients.shutdown();
+		clients.awaitTermination(1, TimeUnit.MINUTES);
 	}
 
 	// クライアント側処理
-	public static class CheckoutService {
+	public static class CheckoutService implements AutoCloseable {
+		// checkoutAsync を同時に呼ばれたとき、1回の processBatch にまとめる件数と待ち時間の既定値
+		private static final int DEFAULT_MAX_BATCH_SIZE = 64;
+		private static final long DEFAULT_MAX_WAIT_MILLIS = 1;
+
 		private final PaymentProcessor processor;
+		private final int maxBatchSize;
+		private final long maxWaitMillis;
+		// 最初の checkoutAsync で作る。同期の checkout だけを使うならスレッドは起動しない
+		private volatile MicroBatcher batcher;
+		private boolean closed; // this で保護する
 
 		public CheckoutService(PaymentProcessor processor) {
+			this(processor, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_WAIT_MILLIS);
+		}
+
+		public CheckoutService(PaymentProcessor processor, int maxBatchSize, long maxWaitMillis) {
+			if (maxBatchSize < 1) {
+				throw new IllegalArgumentException("maxBatchSize must be > 0");
+			}
+			if (maxWaitMillis < 0) {
+				throw new IllegalArgumentException("maxWaitMillis must be >= 0");
+			}
 			this.processor = processor;
+			this.maxBatchSize = maxBatchSize;
+			this.maxWaitMillis = maxWaitMillis;
 		}
 
 		public Receipt checkout(PaymentRequest req) {
 			return processor.process(req);
 		}
+
+		/**
+		 * 呼び出し元をブロックしない決済。同時に届いた決済は件数か待ち時間の上限までまとめて、1回の processBatch で処理する。
+		 */
+		public CompletableFuture<Receipt> checkoutAsync(PaymentRequest req) {
+			MicroBatcher b = batcher;
+			if (b == null) {
+				synchronized (this) {
+					if (closed) {
+						return CompletableFuture.failedFuture(new IllegalStateException("checkout service is closed"));
+					}
+					b = batcher;
+					if (b == null) {
+						b = new MicroBatcher(processor, maxBatchSize, maxWaitMillis);
+						batcher = b;
+					}
+				}
+			}
+			return b.submit(req);
+		}
+
+		// まだ処理していない非同期の決済は失敗で完了する
+		@Override
+		public void close() {
+			MicroBatcher b;
+			synchronized (this) {
+				closed = true;
+				b = batcher;
+			}
+			if (b != null) {
+				b.close();
+			}
+		}
+	}
+
+	/**
+	 * 届いた要求をキューにため、最大 maxBatchSize 件または最初の1件から maxWaitMillis 経過までをまとめて processBatch に渡す。
+	 * 処理は専用のデーモンスレッド1本で順に行うので、処理中に届いた要求は次のバッチにまとまり、負荷が高いほどバッチが大きくなる。
+	 */
+	static class MicroBatcher implements AutoCloseable {
+		private final PaymentProcessor processor;
+		private final int maxBatchSize;
+		private final long maxWaitNanos;
+		private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+		private final Thread dispatcher;
+		private volatile boolean closed;
+
+		MicroBatcher(PaymentProcessor processor, int maxBatchSize, long maxWaitMillis) {
+			if (maxBatchSize < 1) {
+				throw new IllegalArgumentException("maxBatchSize must be > 0");
+			}
+			if (maxWaitMillis < 0) {
+				throw new IllegalArgumentException("maxWaitMillis must be >= 0");
+			}
+			this.processor = processor;
+			this.maxBatchSize = maxBatchSize;
+			this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+			this.dispatcher = new Thread(this::dispatchLoop, "payment-batcher");
+			dispatcher.setDaemon(true);
+			dispatcher.start();
+		}
+
+		CompletableFuture<Receipt> submit(PaymentRequest req) {
+			Pending p = new Pending(req);
+			queue.add(p);
+			// close と競合して取り残された要求は、ここで失敗させる
+			if (closed && queue.remove(p)) {
+				p.future.completeExceptionally(new IllegalStateException("checkout service is closed"));
+			}
+			return p.future;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+			dispatcher.interrupt();
+			try {
+				dispatcher.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			for (Pending p; (p = queue.poll()) != null;) {
+				p.future.completeExceptionally(new IllegalStateException("checkout service is closed"));
+			}
+		}
+
+		// close による割り込みのほか、processBatch が Error を投げた場合もこのスレッドは終わる。
+		// どちらの場合も閉じた状態にして、処理中・キュー内の要求を失敗させる(以後の submit もすぐ失敗する)
+		private void dispatchLoop() {
+			List<Pending> batch = new ArrayList<>(maxBatchSize);
+			try {
+				while (!closed) {
+					batch.add(queue.take());
+					long deadline = System.nanoTime() + maxWaitNanos;
+					// すでにたまっている分はまとめて取り、足りなければ締め切りまで待つ
+					queue.drainTo(batch, maxBatchSize - batch.size());
+					while (batch.size() < maxBatchSize) {
+						Pending p = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+						if (p == null) {
+							break;
+						}
+						batch.add(p);
+						queue.drainTo(batch, maxBatchSize - batch.size());
+					}
+					dispatch(batch);
+					batch.clear();
+				}
+			} catch (InterruptedException e) {
+				// close による終了。後始末は finally で行う
+			} finally {
+				closed = true;
+				for (Pending p : batch) {
+					p.future.completeExceptionally(new IllegalStateException("checkout service is closed"));
+				}
+				for (Pending p; (p = queue.poll()) != null;) {
+					p.future.completeExceptionally(new IllegalStateException("checkout service is closed"));
+				}
+			}
+		}
+
+		private void dispatch(List<Pending> batch) {
+			List<PaymentRequest> requests = new ArrayList<>(batch.size());
+			for (Pending p : batch) {
+				requests.add(p.request);
+			}
+			try {
+				List<Receipt> receipts = processor.processBatch(requests);
+				if (receipts.size() != batch.size()) {
+					throw new IllegalStateException(
+							"processBatch returned " + receipts.size() + " receipts for " + batch.size() + " requests");
+				}
+				for (int i = 0; i < batch.size(); i++) {
+					batch.get(i).future.complete(receipts.get(i));
+				}
+			} catch (Throwable e) {
+				// Error でも待っている呼び出し元を取り残さない。Error はそのまま投げてスレッドを終える
+				for (Pending p : batch) {
+					p.future.completeExceptionally(e);
+				}
+				if (e instanceof Error) {
+					throw (Error) e;
+				}
+			}
+		}
+
+		private static class Pending {
+			final PaymentRequest request;
+			final CompletableFuture<Receipt> future = new CompletableFuture<>();
+
+			Pending(PaymentRequest request) {
+				this.request = request;
+			}
+		}
 	}
 
 	//以下、サーバー側処理
@@ -40,12 +419,62 @@ public class Item65 {
 	}
 
 	// dto
-	private static class PaymentRequest {
+	static class PaymentRequest {
+		// 同じ決済の送り直しを見分けるキー。null なら冪等化しない
+		private final String idempotencyKey;
+
+		PaymentRequest() {
+			this(null);
+		}
+
+		PaymentRequest(String idempotencyKey) {
+			this.idempotencyKey = idempotencyKey;
+		}
+
+		public String getIdempotencyKey() {
+			return idempotencyKey;
+		}
+	}
+
+	/**
+	 * InstrumentedPaymentProcessor が JMX で公開する属性と操作。
+	 * JMX クライアントから見えるよう public にしている。
+	 */
+	public interface PaymentProcessorMetricsMBean {
+		long getCallCount();
+
+		long getErrorCount();
+
+		// 現在処理中の呼び出し数
+		int getInFlight();
+
+		double getP50Micros();
+
+		double getP99Micros();
+
+		double getP999Micros();
+
+		double getMaxMicros();
+
+		// 件数とレイテンシの記録を捨てる(処理中の数はそのまま)
+		void reset();
 	}
 
 	// インターフェース
 	public interface PaymentProcessor {
 		Receipt process(PaymentRequest req);
+
+		/**
+		 * 複数の要求をまとめて処理し、要求と同じ順にレシートを返す。
+		 * 既定では1件ずつ process を呼ぶので、まとめて送れる実装は上書きして1回の呼び出しで処理する。
+		 */
+		default List<Receipt> processBatch(List<PaymentRequest> reqs) {
+			List<Receipt> receipts = new ArrayList<>(reqs.size());
+			for (PaymentRequest req : reqs) {
+				receipts.add(process(req));
+			}
+			return receipts;
+		}
 	}
 
 	// 実装A(本番)
@@ -63,4 +492,589 @@ public class Item65 {
 		}
 	}
 
+	/**
+	 * 遠くの決済サービスを模したスタブ。同時接続数に上限があり、1回の呼び出しごとに固定の往復時間と1件ごとの処理時間がかかる。
+	 * 1件ずつ送ると往復時間が件数分かかり、まとめて送ると1回分で済む。
+	 */
+	static class SimulatedPaymentProcessor implements PaymentProcessor {
+		private final Semaphore connections;
+		private final long perCallMicros;
+		private final long perItemMicros;
+
+		SimulatedPaymentProcessor(int connections, long perCallMicros, long perItemMicros) {
+			this.connections = new Semaphore(connections);
+			this.perCallMicros = perCallMicros;
+			this.perItemMicros = perItemMicros;
+		}
+
+		public Receipt process(PaymentRequest req) {
+			call(1);
+			return new Receipt("simulated", true);
+		}
+
+		@Override
+		public List<Receipt> processBatch(List<PaymentRequest> reqs) {
+			call(reqs.size());
+			List<Receipt> receipts = new ArrayList<>(reqs.size());
+			for (int i = 0; i < reqs.size(); i++) {
+				receipts.add(new Receipt("simulated", true));
+			}
+			return receipts;
+		}
+
+		private void call(int items) {
+			try {
+				connections.acquire();
+				try {
+					TimeUnit.MICROSECONDS.sleep(perCallMicros + perItemMicros * items);
+				} finally {
+					connections.release();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("interrupted while calling payment service", e);
+			}
+		}
+	}
+
+	/**
+	 * 同時実行数(処理中の件数)を制限するデコレータ。上限は観測したレイテンシから AIMD で自動調整する。
+	 * <ul>
+	 * <li>レイテンシが基準(これまでの最小値を緩やかに追従させた値)の2倍以内なら、上限を1往復あたり1ずつ増やす</li>
+	 * <li>2倍を超えたら(待ち行列ができている兆候)、1往復に1回だけ上限を 0.9 倍にする</li>
+	 * </ul>
+	 * 上限に達しているときは最大 maxWaitMillis だけ空きを待ち、空かなければ RejectedExecutionException で断る。
+	 * 決済先に待ち行列を作らせず、断られた分だけ呼び出し元で再試行や縮退をしてもらう。
+	 */
+	static class ConcurrencyLimitingPaymentProcessor implements PaymentProcessor {
+		// 基準レイテンシの何倍までを「待ち行列なし」とみなすか
+		private static final double TOLERANCE = 2.0;
+		private static final double BACKOFF_RATIO = 0.9;
+		// 基準レイテンシを観測値へ寄せる割合。決済先が恒常的に遅くなったときに基準が追いつくようにする
+		private static final double MIN_RTT_DRIFT = 0.001;
+
+		private final PaymentProcessor delegate;
+		private final int minLimit;
+		private final int maxLimit;
+		private final long maxWaitNanos;
+
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition released = lock.newCondition();
+		// 以下は lock で保護する
+		private double limit;
+		private int inFlight;
+		private double minRttNanos = Double.MAX_VALUE;
+		// nanoTime の原点は任意(負にもなる)なので、0 ではなく生成時刻から数える
+		private long lastDecreaseNanos;
+
+		ConcurrencyLimitingPaymentProcessor(PaymentProcessor delegate, int initialLimit, int minLimit, int maxLimit,
+				long maxWaitMillis) {
+			if (minLimit < 1 || minLimit > initialLimit || initialLimit > maxLimit) {
+				throw new IllegalArgumentException("limits must satisfy 1 <= min <= initial <= max");
+			}
+			this.delegate = delegate;
+			this.limit = initialLimit;
+			this.minLimit = minLimit;
+			this.maxLimit = maxLimit;
+			this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+			this.lastDecreaseNanos = System.nanoTime();
+		}
+
+		public Receipt process(PaymentRequest req) {
+			acquire();
+			long start = System.nanoTime();
+			boolean succeeded = false;
+			try {
+				Receipt receipt = delegate.process(req);
+				succeeded = true;
+				return receipt;
+			} finally {
+				release(System.nanoTime() - start, succeeded);
+			}
+		}
+
+		// まとめて送る呼び出しも、決済先から見れば処理中の1件として数える
+		@Override
+		public List<Receipt> processBatch(List<PaymentRequest> reqs) {
+			acquire();
+			long start = System.nanoTime();
+			boolean succeeded = false;
+			try {
+				List<Receipt> receipts = delegate.processBatch(reqs);
+				succeeded = true;
+				return receipts;
+			} finally {
+				release(System.nanoTime() - start, succeeded);
+			}
+		}
+
+		public int getLimit() {
+			lock.lock();
+			try {
+				return (int) limit;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void acquire() {
+			lock.lock();
+			try {
+				long remaining = maxWaitNanos;
+				while (inFlight >= (int) limit) {
+					if (remaining <= 0) {
+						throw new RejectedExecutionException("payment concurrency limit reached: " + (int) limit);
+					}
+					remaining = released.awaitNanos(remaining);
+				}
+				inFlight++;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("interrupted while waiting for a payment slot", e);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void release(long rttNanos, boolean succeeded) {
+			lock.lock();
+			try {
+				inFlight--;
+				// 失敗はレイテンシが当てにならないので上限の調整に使わない
+				if (succeeded) {
+					adjust(rttNanos);
+				}
+				released.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void adjust(long rttNanos) {
+			minRttNanos = Math.min(rttNanos, minRttNanos + (rttNanos - minRttNanos) * MIN_RTT_DRIFT);
+			long now = System.nanoTime();
+			if (rttNanos > minRttNanos * TOLERANCE) {
+				if (now - lastDecreaseNanos > rttNanos) {
+					limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+					lastDecreaseNanos = now;
+				}
+			} else if (inFlight + 1 >= (int) limit) {
+				// 上限いっぱいまで使っているときだけ増やす(使っていない上限が際限なく伸びないように)
+				limit = Math.min(maxLimit, limit + 1 / limit);
+			}
+		}
+	}
+
+	/**
+	 * 過負荷で遅くなる決済先のスタブ。同時に処理できるのは workers 件で、それを超えた分は待ち行列に並ぶ。
+	 * 待ち行列が長いほど1件の処理も遅くなる(待っている接続の管理やコンテキストスイッチのコストを模擬)ので、
+	 * 過負荷になるとスループット自体が落ちる。
+	 */
+	static class DegradingPaymentProcessor implements PaymentProcessor {
+		// 待ち行列1件あたり、処理時間が何割増えるか
+		private static final double SLOWDOWN_PER_WAITER = 0.05;
+
+		private final Semaphore workers;
+		private final long serviceMicros;
+		private final AtomicInteger waiting = new AtomicInteger();
+
+		DegradingPaymentProcessor(int workers, long serviceMicros) {
+			this.workers = new Semaphore(workers, true);
+			this.serviceMicros = serviceMicros;
+		}
+
+		public Receipt process(PaymentRequest req) {
+			try {
+				waiting.incrementAndGet();
+				try {
+					workers.acquire();
+				} finally {
+					waiting.decrementAndGet();
+				}
+				try {
+					TimeUnit.MICROSECONDS.sleep((long) (serviceMicros * (1 + SLOWDOWN_PER_WAITER * waiting.get())));
+				} finally {
+					workers.release();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("interrupted while calling payment service", e);
+			}
+			return new Receipt("degrading", true);
+		}
+	}
+
+	/**
+	 * 主系が一定時間内に返らなければ同じ要求を副系にも送り、先に返ったレシートを使うデコレータ(ヘッジ)。
+	 * 待つ時間は主系のレイテンシ分布の hedgePercentile パーセンタイルで、分布が変われば追従する。
+	 * 余分な負荷はトークンバケットで抑える。1回の呼び出しごとに maxHedgeRatio 個のトークンがたまり、ヘッジ1回で1個使うので、
+	 * ヘッジは長い目で見て呼び出しの maxHedgeRatio 倍を超えない。負けた側は cancel(true) で割り込んで取り消す。
+	 * 主系と副系が同じ要求を二重に処理しても問題ないこと(冪等であること)が前提。
+	 */
+	static class HedgingPaymentProcessor implements PaymentProcessor {
+		// 分布が当てになるまではヘッジしない
+		private static final int MIN_SAMPLES = 100;
+		// ヘッジまでの待ち時間を計算し直す間隔(呼び出し回数)。percentile は全バケットを読むので毎回は呼ばない
+		private static final int DELAY_REFRESH_INTERVAL = 256;
+		// トークンは1000分の1単位の整数で持つ。ためられる上限はヘッジ10回分
+		private static final long TOKEN_UNIT = 1_000;
+		private static final long MAX_TOKENS = 10 * TOKEN_UNIT;
+
+		private final PaymentProcessor primary;
+		private final PaymentProcessor secondary;
+		private final ExecutorService executor;
+		private final double hedgePercentile;
+		private final long tokensPerCall;
+
+		private final LatencyHistogram primaryLatency = new LatencyHistogram();
+		private final AtomicLong tokens = new AtomicLong();
+		private final AtomicLong calls = new AtomicLong();
+		private final LongAdder hedges = new LongAdder();
+		private volatile long hedgeDelayNanos = Long.MAX_VALUE;
+
+		HedgingPaymentProcessor(PaymentProcessor primary, PaymentProcessor secondary, ExecutorService executor,
+				double hedgePercentile, double maxHedgeRatio) {
+			if (maxHedgeRatio < 0 || maxHedgeRatio > 1) {
+				throw new IllegalArgumentException("maxHedgeRatio must be in [0, 1]");
+			}
+			this.primary = primary;
+			this.secondary = secondary;
+			this.executor = executor;
+			this.hedgePercentile = hedgePercentile;
+			this.tokensPerCall = Math.round(maxHedgeRatio * TOKEN_UNIT);
+		}
+
+		public Receipt process(PaymentRequest req) {
+			long call = calls.incrementAndGet();
+			addTokens();
+			ExecutorCompletionService<Receipt> completion = new ExecutorCompletionService<>(executor);
+			List<Future<Receipt>> attempts = new ArrayList<>(2);
+			attempts.add(completion.submit(() -> {
+				long start = System.nanoTime();
+				Receipt receipt = primary.process(req);
+				// 負けて取り消された主系は記録されないので、分布は実際よりやや短めに出る
+				primaryLatency.recordSince(start);
+				return receipt;
+			}));
+			try {
+				Future<Receipt> done = completion.poll(hedgeDelay(call), TimeUnit.NANOSECONDS);
+				if (done == null && tryTakeToken()) {
+					hedges.increment();
+					attempts.add(completion.submit(() -> secondary.process(req)));
+				}
+				if (done == null) {
+					done = completion.take();
+				}
+				try {
+					return done.get();
+				} catch (ExecutionException e) {
+					// 片方が失敗しても、もう片方が動いていればその結果を待つ
+					if (attempts.size() == 1) {
+						throw e;
+					}
+					return completion.take().get();
+				}
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw new IllegalStateException("payment failed", cause);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("interrupted while waiting for payment", e);
+			} finally {
+				for (Future<Receipt> f : attempts) {
+					f.cancel(true);
+				}
+			}
+		}
+
+		public long getCallCount() {
+			return calls.get();
+		}
+
+		public long getHedgeCount() {
+			return hedges.sum();
+		}
+
+		private long hedgeDelay(long call) {
+			if (call % DELAY_REFRESH_INTERVAL == 0 && primaryLatency.count() >= MIN_SAMPLES) {
+				hedgeDelayNanos = primaryLatency.percentile(hedgePercentile);
+			}
+			return hedgeDelayNanos;
+		}
+
+		private void addTokens() {
+			long current = tokens.get();
+			while (current < MAX_TOKENS && !tokens.compareAndSet(current, Math.min(current + tokensPerCall, MAX_TOKENS))) {
+				current = tokens.get();
+			}
+		}
+
+		private boolean tryTakeToken() {
+			long current = tokens.get();
+			while (current >= TOKEN_UNIT) {
+				if (tokens.compareAndSet(current, current - TOKEN_UNIT)) {
+					return true;
+				}
+				current = tokens.get();
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * レイテンシの裾が重い決済先のスタブ。ほとんどは fastMicros で返るが、slowRatio の確率で slowMicros かかる
+	 * (GC 停止やリトライなど、たまに起きる遅延を模擬)。割り込まれたら処理を打ち切る。
+	 */
+	static class HeavyTailedPaymentProcessor implements PaymentProcessor {
+		private final long fastMicros;
+		private final long slowMicros;
+		private final double slowRatio;
+
+		HeavyTailedPaymentProcessor(long fastMicros, long slowMicros, double slowRatio) {
+			this.fastMicros = fastMicros;
+			this.slowMicros = slowMicros;
+			this.slowRatio = slowRatio;
+		}
+
+		public Receipt process(PaymentRequest req) {
+			long micros = (ThreadLocalRandom.current().nextDouble() < slowRatio) ? slowMicros : fastMicros;
+			try {
+				TimeUnit.MICROSECONDS.sleep(micros);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("payment call cancelled", e);
+			}
+			return new Receipt("heavy-tailed", true);
+		}
+	}
+
+	/**
+	 * 同じ冪等キーの要求を1回の決済にまとめるデコレータ。
+	 * <ul>
+	 * <li>処理中の要求と同じキーが届いたら、新しく呼ばずに処理中の結果を待つ(single-flight)</li>
+	 * <li>成功したレシートは ttlMillis の間キャッシュし、同じキーにはそれを返す</li>
+	 * <li>失敗はキャッシュしない。そのとき待っていた要求には同じ例外を返し、次の要求は決済し直す</li>
+	 * </ul>
+	 * 完了したレシートは完了順の FIFO で、maxEntries 件を超えたら古いものから捨てる。期限切れは参照時と登録時に捨てる。
+	 * 処理中の要求は FIFO に入れないので追い出されず、同時に処理中の数(呼び出しスレッド数)を超えて増えることもない。
+	 * キーを持たない要求はそのまま委譲する。
+	 */
+	static class IdempotentPaymentProcessor implements PaymentProcessor {
+		private final PaymentProcessor delegate;
+		private final int maxEntries;
+		private final long ttlNanos;
+
+		private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+		// 完了したエントリの完了順。エントリがすでに消えていても、ここから取り出すまでは件数に数える
+		// (完了済みのキャッシュがこれより大きくならない)
+		private final ConcurrentLinkedQueue<Entry> order = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger orderSize = new AtomicInteger();
+
+		IdempotentPaymentProcessor(PaymentProcessor delegate, int maxEntries, long ttlMillis) {
+			if (maxEntries < 1) {
+				throw new IllegalArgumentException("maxEntries must be > 0");
+			}
+			this.delegate = delegate;
+			this.maxEntries = maxEntries;
+			this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+		}
+
+		public Receipt process(PaymentRequest req) {
+			String key = req.getIdempotencyKey();
+			if (key == null) {
+				return delegate.process(req);
+			}
+			while (true) {
+				Entry existing = entries.get(key);
+				if (existing != null && existing.isExpired(System.nanoTime())) {
+					entries.remove(key, existing);
+					continue;
+				}
+				if (existing != null) {
+					return await(existing.future);
+				}
+				Entry mine = new Entry(key);
+				if (entries.putIfAbsent(key, mine) != null) {
+					// 別スレッドが先に登録したので、その結果を待つ
+					continue;
+				}
+				return call(req, mine);
+			}
+		}
+
+		// キャッシュしているキーの数(処理中を含む)
+		public int size() {
+			return entries.size();
+		}
+
+		private Receipt call(PaymentRequest req, Entry entry) {
+			try {
+				Receipt receipt = delegate.process(req);
+				entry.expiresAtNanos = System.nanoTime() + ttlNanos;
+				entry.future.complete(receipt);
+				register(entry);
+				return receipt;
+			} catch (Throwable e) {
+				// Error でも取り除いて完了させないと、同じキーの要求が join で待ち続ける
+				entries.remove(entry.key, entry);
+				entry.future.completeExceptionally(e);
+				throw e;
+			}
+		}
+
+		// 完了したエントリを末尾に足し、期限切れの先頭と上限を超えた分を捨てる
+		private void register(Entry entry) {
+			order.add(entry);
+			int size = orderSize.incrementAndGet();
+			long now = System.nanoTime();
+			for (Entry head; (head = order.peek()) != null && (size > maxEntries || head.isExpired(now));) {
+				if (order.remove(head)) {
+					size = orderSize.decrementAndGet();
+					entries.remove(head.key, head);
+				} else {
+					size = orderSize.get();
+				}
+			}
+		}
+
+		private static Receipt await(CompletableFuture<Receipt> future) {
+			try {
+				return future.join();
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				if (e.getCause() instanceof Error) {
+					throw (Error) e.getCause();
+				}
+				throw e;
+			}
+		}
+
+		private static class Entry {
+			final String key;
+			final CompletableFuture<Receipt> future = new CompletableFuture<>();
+			// 処理中は期限なし。成功した時点から ttl を数える
+			volatile long expiresAtNanos = Long.MAX_VALUE;
+
+			Entry(String key) {
+				this.key = key;
+			}
+
+			boolean isExpired(long now) {
+				long expiresAt = expiresAtNanos;
+				return expiresAt != Long.MAX_VALUE && now - expiresAt > 0;
+			}
+		}
+	}
+
+	/**
+	 * 呼び出し回数・エラー回数・処理中の数・レイテンシ分布を記録するデコレータ。
+	 * 記録は LongAdder / AtomicInteger / LatencyHistogram への加算だけで、ロックも割り当てもしない。
+	 * register で platform MBeanServer に登録すると、再起動なしに JMX から p50/p99 を読める。
+	 */
+	static class InstrumentedPaymentProcessor implements PaymentProcessor, PaymentProcessorMetricsMBean {
+		private static final String DOMAIN = "effectiveJava.Item65";
+
+		private final PaymentProcessor delegate;
+		private final LongAdder calls = new LongAdder();
+		private final LongAdder errors = new LongAdder();
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private final LatencyHistogram latency = new LatencyHistogram();
+
+		InstrumentedPaymentProcessor(PaymentProcessor delegate) {
+			this.delegate = delegate;
+		}
+
+		public Receipt process(PaymentRequest req) {
+			calls.increment();
+			inFlight.incrementAndGet();
+			long start = System.nanoTime();
+			try {
+				return delegate.process(req);
+			} catch (RuntimeException e) {
+				errors.increment();
+				throw e;
+			} finally {
+				latency.recordSince(start);
+				inFlight.decrementAndGet();
+			}
+		}
+
+		// まとめて送る呼び出しは1回として数える
+		@Override
+		public List<Receipt> processBatch(List<PaymentRequest> reqs) {
+			calls.increment();
+			inFlight.incrementAndGet();
+			long start = System.nanoTime();
+			try {
+				return delegate.processBatch(reqs);
+			} catch (RuntimeException e) {
+				errors.increment();
+				throw e;
+			} finally {
+				latency.recordSince(start);
+				inFlight.decrementAndGet();
+			}
+		}
+
+		/**
+		 * effectiveJava.Item65:type=PaymentProcessor,name=name として登録し、その名前を返す。
+		 */
+		public ObjectName register(String name) {
+			try {
+				ObjectName objectName = new ObjectName(DOMAIN + ":type=PaymentProcessor,name=" + ObjectName.quote(name));
+				ManagementFactory.getPlatformMBeanServer()
+						.registerMBean(new StandardMBean(this, PaymentProcessorMetricsMBean.class), objectName);
+				return objectName;
+			} catch (JMException e) {
+				throw new IllegalStateException("cannot register payment processor metrics: " + name, e);
+			}
+		}
+
+		@Override
+		public long getCallCount() {
+			return calls.sum();
+		}
+
+		@Override
+		public long getErrorCount() {
+			return errors.sum();
+		}
+
+		@Override
+		public int getInFlight() {
+			return inFlight.get();
+		}
+
+		@Override
+		public double getP50Micros() {
+			return latency.percentile(50) / 1_000.0;
+		}
+
+		@Override
+		public double getP99Micros() {
+			return latency.percentile(99) / 1_000.0;
+		}
+
+		@Override
+		public double getP999Micros() {
+			return latency.percentile(99.9) / 1_000.0;
+		}
+
+		@Override
+		public double getMaxMicros() {
+			return latency.max() / 1_000.0;
+		}
+
+		@Override
+		public void reset() {
+			calls.reset();
+			errors.reset();
+			latency.reset();
+		}
+	}
 }
@@ -1,13 +1,172 @@
 package effectiveJava;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import utils.StopWatch;
+
 public class Item66 {
+	// デモで作るファイルの大きさ
+	private static final int DEMO_FILE_BYTES = 64 * 1024 * 1024;
+	// ツリーハッシュの葉の大きさ
+	private static final int DEMO_LEAF_BYTES = 1024 * 1024;
+
+	public static void main(String[] args) throws IOException {
+		// nativeCrypto が java.library.path になければ JavaCrypto にフォールバックする
+		System.out.println("選ばれた実装: " + Crypto.create().getClass().getSimpleName());
+		Crypto crypto = new JavaCrypto();
+
+		// 大きなファイル: 全体を1つの領域にマップして渡すか、マップした領域を少しずつ渡すか、ストリームで読むか
+		Path file = Files.createTempFile("item66", ".bin");
+		file.toFile().deleteOnExit();
+		byte[] block = new byte[1024 * 1024];
+		new Random(66).nextBytes(block);
+		try (OutputStream out = Files.newOutputStream(file)) {
+			for (int written = 0; written < DEMO_FILE_BYTES; written += block.length) {
+				out.write(block);
+			}
+		}
 
-	public static void main(String[] args) {
+		StopWatch sw = new StopWatch();
+		sw.start();
+		byte[] whole;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			whole = crypto.hash(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+		sw.stop("hash(ByteBuffer) ファイル全体をマップ");
+		sw.start();
+		byte[] mapped = crypto.hash(file);
+		sw.stop("hash(Path) マップした領域ごと");
+		sw.start();
+		byte[] streamed;
+		try (InputStream in = Files.newInputStream(file)) {
+			streamed = crypto.hash(in);
+		}
+		sw.stop("hash(InputStream)");
 
+		ByteBuffer direct = ByteBuffer.allocateDirect(block.length).put(block).flip();
+		System.out.println("SHA-256: " + HexFormat.of().formatHex(mapped));
+		System.out.println("3つの方法の結果が一致: " + (Arrays.equals(whole, mapped) && Arrays.equals(whole, streamed)));
+		System.out.println("direct ByteBuffer と byte[] の結果が一致: "
+				+ Arrays.equals(crypto.hash(direct), crypto.hash(block)));
+
+		// 小さなレコードを大量に: 1件ずつ hash するか、hashAll で1つの配列に詰めるか
+		JavaCrypto java = new JavaCrypto();
+		List<byte[]> records = new ArrayList<>();
+		for (int i = 0; i < 1_000_000; i++) {
+			records.add(Arrays.copyOfRange(block, i % 1024, i % 1024 + 64));
+		}
+		sw.start();
+		for (byte[] r : records) {
+			java.hash(r);
+		}
+		sw.stop("hash(byte[]) x 1M (64B)", records.size());
+		sw.start();
+		byte[] arena = java.hashAll(records);
+		sw.stop("hashAll x 1M (64B)", records.size());
+		System.out.println("hashAll の先頭と hash(byte[]) が一致: "
+				+ Arrays.equals(arena, 0, JavaCrypto.DIGEST_LENGTH, java.hash(records.get(0)), 0, JavaCrypto.DIGEST_LENGTH));
+
+		// ツリーハッシュ: 葉ごとに並列でハッシュし、スレッド数によらず同じ根になる
+		ForkJoinPool single = new ForkJoinPool(1);
+		sw.start();
+		MerkleTree sequential = MerkleTree.build(crypto, file, DEMO_LEAF_BYTES, single);
+		sw.stop("treeHash 1スレッド");
+		sw.start();
+		MerkleTree parallel = MerkleTree.build(crypto, file, DEMO_LEAF_BYTES, ForkJoinPool.commonPool());
+		sw.stop("treeHash " + ForkJoinPool.commonPool().getParallelism() + "並列");
+		single.shutdown();
+		System.out.println("根が一致: " + Arrays.equals(sequential.root(), parallel.root())
+				+ ", 根: " + HexFormat.of().formatHex(parallel.root()));
+
+		// ファイルの一部だけ変わったら、変わった葉と根までの経路だけハッシュし直す(読むのはその葉の範囲だけ)
+		MerkleTree tree = MerkleTree.build(crypto, file, DEMO_LEAF_BYTES, ForkJoinPool.commonPool());
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer one = ByteBuffer.allocate(1);
+			channel.read(one, 5_000_000);
+			one.put(0, (byte) ~one.get(0));
+			channel.write(one.flip(), 5_000_000);
+		}
+		System.out.println("書き換えた葉を検証: " + tree.verifyLeaf(file, 5_000_000 / DEMO_LEAF_BYTES));
+		MerkleTree rebuilt = MerkleTree.build(crypto, file, DEMO_LEAF_BYTES, ForkJoinPool.commonPool());
+		System.out.println("変わった葉: " + tree.diff(rebuilt));
+		sw.start();
+		tree.rehash(file, 5_000_000, 5_000_001);
+		sw.stop("変わった範囲だけ rehash");
+		System.out.println("rehash 後の根が作り直した根と一致: " + Arrays.equals(tree.root(), rebuilt.root())
+				+ ", 書き換えた葉を再検証: " + tree.verifyLeaf(file, 5_000_000 / DEMO_LEAF_BYTES));
 	}
 
 	public interface Crypto {
+		/**
+		 * ネイティブ実装が使えればそれを、使えなければ JavaCrypto を返す。
+		 */
+		static Crypto create() {
+			return NativeCrypto.isAvailable() ? new NativeCrypto() : new JavaCrypto();
+		}
+
 		byte[] hash(byte[] data);
+
+		/**
+		 * data の position から limit までのハッシュ。data の position は変えない。
+		 * 既定では byte[] にコピーしてから hash(byte[]) を呼ぶ。コピーせずに済む実装は上書きする。
+		 */
+		default byte[] hash(ByteBuffer data) {
+			ByteBuffer src = data.duplicate();
+			byte[] bytes = new byte[src.remaining()];
+			src.get(bytes);
+			return hash(bytes);
+		}
+
+		/**
+		 * in を終わりまで読んだハッシュ。in は閉じない。
+		 * hash(byte[]) と hash(ByteBuffer) は一度に全体を受け取るので、区切って呼んでも1つのハッシュにはならない。
+		 * 既定では JavaCrypto の MessageDigest に固定長の領域ずつ渡し、入力の大きさによらずメモリ使用量を一定にする。
+		 */
+		default byte[] hash(InputStream in) throws IOException {
+			return new JavaCrypto().hash(in);
+		}
+
+		/**
+		 * ファイルの内容のハッシュ。既定では JavaCrypto でマップした領域ずつ処理する(ヒープに全体を読まない)。
+		 */
+		default byte[] hash(Path file) throws IOException {
+			return new JavaCrypto().hash(file);
+		}
+
+		/**
+		 * data を leafSize バイトごとの葉に分け、共通プールで並列にハッシュしたマークル木の根。
+		 * 通常の hash とは別の値になるが、同じ入力と leafSize ならスレッド数によらず同じ値になる。
+		 */
+		default byte[] treeHash(ByteBuffer data, int leafSize) {
+			return MerkleTree.build(this, data, leafSize, ForkJoinPool.commonPool()).root();
+		}
+
+		/**
+		 * ファイル版の treeHash。葉ごとにファイルの該当範囲をマップするので、2GB を超えるファイルも扱える。
+		 */
+		default byte[] treeHash(Path file, int leafSize) throws IOException {
+			return MerkleTree.build(this, file, leafSize, ForkJoinPool.commonPool()).root();
+		}
 	}
 
 	public static class CryptoException extends RuntimeException {
@@ -17,33 +176,142 @@ public class Item66 {
 	}
 
 	// Java実装(フォールバック)
+	// ByteBuffer / InputStream / Path は MessageDigest.update に少しずつ渡すので、入力の大きさによらずメモリ使用量は一定
 	public static class JavaCrypto implements Crypto {
+		public static final int DIGEST_LENGTH = 32;
+
+		// InputStream から1回に読む大きさ
+		private static final int STREAM_CHUNK_BYTES = 64 * 1024;
+		// ファイルを1回にマップする大きさ。1つの MappedByteBuffer は 2GB までなので、大きなファイルは区切って渡す
+		private static final long MAP_CHUNK_BYTES = 64L * 1024 * 1024;
+
+		// getInstance はプロバイダの検索とオブジェクト生成を伴うので、スレッドごとに1つ作って使い回す。
+		// digest() は状態をリセットするので、次の呼び出しはそのまま使える
+		private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(JavaCrypto::newDigest);
+
 		@Override
 		public byte[] hash(byte[] data) {
+			return DIGEST.get().digest(data);
+		}
+
+		// direct バッファもヒープにコピーせず、MessageDigest がそのまま読む
+		@Override
+		public byte[] hash(ByteBuffer data) {
+			MessageDigest md = DIGEST.get();
 			try {
-				var md = java.security.MessageDigest.getInstance("SHA-256");
-				return md.digest(data);
-			} catch (Exception e) {
-				throw new RuntimeException(e);
+				md.update(data.duplicate());
+			} catch (Throwable e) {
+				// 途中まで読んだ状態を、このスレッドの次の hash に持ち越さない
+				md.reset();
+				throw e;
 			}
+			return md.digest();
+		}
 
+		/**
+		 * inputs それぞれのハッシュを、1つの配列に DIGEST_LENGTH バイトずつ順に詰めて返す。
+		 * i 番目のハッシュは [i * DIGEST_LENGTH, (i + 1) * DIGEST_LENGTH)。
+		 * 小さな入力を大量に処理するとき、結果ごとの byte[] を作らずに済む。
+		 * 結果が1つの配列に収まらない件数(Integer.MAX_VALUE / DIGEST_LENGTH 超)は ArithmeticException。分けて呼ぶこと。
+		 */
+		public byte[] hashAll(List<byte[]> inputs) {
+			MessageDigest md = DIGEST.get();
+			byte[] out = new byte[Math.multiplyExact(inputs.size(), DIGEST_LENGTH)];
+			try {
+				int offset = 0;
+				for (byte[] input : inputs) {
+					md.update(input);
+					md.digest(out, offset, DIGEST_LENGTH);
+					offset += DIGEST_LENGTH;
+				}
+			} catch (DigestException e) {
+				md.reset();
+				throw new CryptoException("SHA-256 digest failed", e);
+			}
+			return out;
+		}
+
+		// InputStream は読み出し中に同じスレッドで hash を呼ばれうるので、使い回しの digest とは別のものを使う
+		@Override
+		public byte[] hash(InputStream in) throws IOException {
+			MessageDigest md = newDigest();
+			byte[] chunk = new byte[STREAM_CHUNK_BYTES];
+			for (int n; (n = in.read(chunk)) != -1;) {
+				md.update(chunk, 0, n);
+			}
+			return md.digest();
+		}
+
+		// ページキャッシュを直接読むので、ヒープへのコピーもファイル全体分のバッファも要らない
+		@Override
+		public byte[] hash(Path file) throws IOException {
+			MessageDigest md = DIGEST.get();
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				long size = channel.size();
+				for (long pos = 0; pos < size; pos += MAP_CHUNK_BYTES) {
+					MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, pos,
+							Math.min(MAP_CHUNK_BYTES, size - pos));
+					md.update(region);
+				}
+			} catch (Throwable e) {
+				// I/O 例外やファイルの切り詰めで途中終了しても、このスレッドの次の hash に状態を持ち越さない
+				md.reset();
+				throw e;
+			}
+			return md.digest();
+		}
+
+		private static MessageDigest newDigest() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new CryptoException("SHA-256 is not available", e);
+			}
 		}
 	}
 
-	// ネイティブ実装ラッパー(薄いFacade)
+	/**
+	 * ネイティブ実装ラッパー(薄いFacade)。ネイティブ側のソースはこのリポジトリには含めない。
+	 * libnativeCrypto は次の JNI 関数を公開し、どちらも SHA-256(32バイト)の jbyteArray を返すこと。
+	 * <pre>
+	 * Java_effectiveJava_Item66_00024NativeCrypto_nativeHash(JNIEnv*, jclass, jbyteArray data)
+	 * Java_effectiveJava_Item66_00024NativeCrypto_nativeHashDirect(JNIEnv*, jclass, jobject buf, jint offset, jint length)
+	 * </pre>
+	 * nativeHashDirect は GetDirectBufferAddress(buf) + offset から length バイトを読む。
+	 * 古いライブラリで nativeHashDirect がなければ、direct バッファも既定の byte[] 経由に切り替える。
+	 */
 	public static class NativeCrypto implements Crypto {
-		static {
+		// ロードに失敗したときの原因(成功したら null)。<clinit> では投げず、使う側が isAvailable で確かめて切り替える
+		private static final Throwable LOAD_FAILURE = loadLibrary();
+
+		public NativeCrypto() {
+			if (!isAvailable()) {
+				throw new CryptoException("nativeCrypto library is not available", LOAD_FAILURE);
+			}
+		}
+
+		// nativeHashDirect がライブラリになかったら false にして、以降は呼ばずに既定の経路を使う
+		private static volatile boolean directLinked = true;
+
+		public static boolean isAvailable() {
+			return LOAD_FAILURE == null;
+		}
+
+		private static Throwable loadLibrary() {
 			try {
 				System.loadLibrary("nativeCrypto");
-			} catch (UnsatisfiedLinkError e) {
-				// ロード失敗は起動時に検出して呼び出し側がフォールバック可能にする
-				throw new ExceptionInInitializerError(e);
+				return null;
+			} catch (UnsatisfiedLinkError | SecurityException e) {
+				return e;
 			}
 		}
 
 		// native メソッドは private で小さく保つ(直接公開しない)
 		private static native byte[] nativeHash(byte[] data);
 
+		// direct バッファのアドレス(GetDirectBufferAddress)から offset, length の範囲を直接読む。コピーもピン留めもしない
+		private static native byte[] nativeHashDirect(ByteBuffer data, int offset, int length);
+
 		@Override
 		public byte[] hash(byte[] data) throws CryptoException {
 			if (data == null) {
@@ -58,5 +326,324 @@ public class Item66 {
 
 		}
 
+		// direct バッファはゼロコピーでネイティブに渡す。ヒープのバッファは既定どおり byte[] にコピーする
+		@Override
+		public byte[] hash(ByteBuffer data) throws CryptoException {
+			if (!data.isDirect() || !directLinked) {
+				return Crypto.super.hash(data);
+			}
+			try {
+				return nativeHashDirect(data, data.position(), data.remaining());
+			} catch (UnsatisfiedLinkError e) {
+				directLinked = false;
+				return Crypto.super.hash(data);
+			} catch (RuntimeException e) {
+				throw new CryptoException("native hash failed", e);
+			}
+		}
+
+		// 1つの領域にマップできる大きさなら、マップした領域をそのまま nativeHashDirect に渡す(ヒープへのコピーなし)。
+		// それより大きいファイルと nativeHashDirect がないときは、既定どおり JavaCrypto で少しずつ処理する
+		@Override
+		public byte[] hash(Path file) throws IOException {
+			if (directLinked) {
+				try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+					long size = channel.size();
+					if (size <= Integer.MAX_VALUE) {
+						MappedByteBuffer whole = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+						try {
+							return nativeHashDirect(whole, 0, whole.remaining());
+						} catch (UnsatisfiedLinkError e) {
+							directLinked = false;
+						} catch (RuntimeException e) {
+							throw new CryptoException("native hash failed", e);
+						}
+					}
+				}
+			}
+			return Crypto.super.hash(file);
+		}
+
+	}
+
+	/**
+	 * 入力を固定長の葉に分けたマークル木。葉は SHA-256(0x00 || SHA-256(葉))、内部ノードは SHA-256(0x01 || 左 || 右) で、
+	 * 接頭辞で葉と内部ノードを区別する(葉を内部ノードに見せかける第二原像攻撃を防ぐ)。
+	 * 葉の中身は hash(ByteBuffer) にそのまま渡すので、マップした領域をヒープにコピーしない。
+	 * 段の要素数が奇数のときは、最後のノードをそのまま上の段に上げる。空の入力は空の葉1つとして扱う。
+	 * 葉の分け方は leafSize だけで決まるので、根はプールのスレッド数に依存しない。
+	 * rehash で木を書き換えるので、スレッドセーフではない。
+	 */
+	public static final class MerkleTree {
+		private static final byte LEAF_PREFIX = 0x00;
+		private static final byte NODE_PREFIX = 0x01;
+
+		private final Crypto crypto;
+		private final int leafSize;
+		private final long length;
+		// levels[0] が葉のハッシュ、最後の段が根(1要素)
+		private final byte[][][] levels;
+
+		private MerkleTree(Crypto crypto, int leafSize, long length) {
+			this.crypto = crypto;
+			this.leafSize = leafSize;
+			this.length = length;
+			long leaves = Math.max(1, (length + leafSize - 1) / leafSize);
+			if (leaves > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("too many leaves; use a larger leafSize");
+			}
+			List<byte[][]> sizes = new ArrayList<>();
+			for (int n = (int) leaves;; n = (n + 1) / 2) {
+				sizes.add(new byte[n][]);
+				if (n == 1) {
+					break;
+				}
+			}
+			this.levels = sizes.toArray(new byte[0][][]);
+		}
+
+		/**
+		 * data の position から limit までの木を作る。data の position は変えない。
+		 */
+		public static MerkleTree build(Crypto crypto, ByteBuffer data, int leafSize, ForkJoinPool pool) {
+			requirePositive(leafSize);
+			ByteBuffer src = data.slice();
+			MerkleTree tree = new MerkleTree(crypto, leafSize, src.remaining());
+			pool.invoke(new LeafTask(tree, i -> tree.leafOf(src, i), 0, tree.leafCount()));
+			tree.hashNodes();
+			return tree;
+		}
+
+		/**
+		 * ファイルの木を作る。葉ごとに該当範囲だけをマップして読む。
+		 */
+		public static MerkleTree build(Crypto crypto, Path file, int leafSize, ForkJoinPool pool) throws IOException {
+			requirePositive(leafSize);
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				long size = channel.size();
+				MerkleTree tree = new MerkleTree(crypto, leafSize, size);
+				pool.invoke(new LeafTask(tree, i -> tree.mapLeaf(channel, i), 0, tree.leafCount()));
+				tree.hashNodes();
+				return tree;
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		}
+
+		public byte[] root() {
+			return levels[levels.length - 1][0].clone();
+		}
+
+		public int leafCount() {
+			return levels[0].length;
+		}
+
+		/**
+		 * data(木を作ったときと同じ長さの入力全体)の index 番目の葉が、記録しているハッシュと一致するか。
+		 */
+		public boolean verifyLeaf(ByteBuffer data, int index) {
+			ByteBuffer src = requireSameLength(data);
+			Objects.checkIndex(index, leafCount());
+			return Arrays.equals(levels[0][index], hashLeaf(leafOf(src, index)));
+		}
+
+		/**
+		 * ファイル版の verifyLeaf。index 番目の葉の範囲だけをマップして読む。
+		 */
+		public boolean verifyLeaf(Path file, int index) throws IOException {
+			Objects.checkIndex(index, leafCount());
+			try (FileChannel channel = openSameLength(file)) {
+				return Arrays.equals(levels[0][index], hashLeaf(mapLeaf(channel, index)));
+			}
+		}
+
+		/**
+		 * data の [from, to) が変わったときに、その範囲にかかる葉と、そこから根までの経路だけをハッシュし直す。
+		 * 長さが変わった場合は作り直すこと。
+		 */
+		public void rehash(ByteBuffer data, long from, long to) {
+			ByteBuffer src = requireSameLength(data);
+			if (requireRange(from, to)) {
+				for (int i = firstLeaf(from); i <= lastLeaf(to); i++) {
+					levels[0][i] = hashLeaf(leafOf(src, i));
+				}
+				rehashNodes(firstLeaf(from), lastLeaf(to));
+			}
+		}
+
+		/**
+		 * ファイル版の rehash。マップするのは [from, to) にかかる葉の範囲だけなので、2GB を超えるファイルも扱える。
+		 */
+		public void rehash(Path file, long from, long to) throws IOException {
+			try (FileChannel channel = openSameLength(file)) {
+				if (requireRange(from, to)) {
+					for (int i = firstLeaf(from); i <= lastLeaf(to); i++) {
+						levels[0][i] = hashLeaf(mapLeaf(channel, i));
+					}
+					rehashNodes(firstLeaf(from), lastLeaf(to));
+				}
+			}
+		}
+
+		// [from, to) が範囲内か確かめ、空でなければ true
+		private boolean requireRange(long from, long to) {
+			if (from < 0 || to > length || from > to) {
+				throw new IndexOutOfBoundsException("range [" + from + ", " + to + ") out of [0, " + length + ")");
+			}
+			return from < to;
+		}
+
+		private int firstLeaf(long from) {
+			return (int) (from / leafSize);
+		}
+
+		private int lastLeaf(long to) {
+			return (int) ((to - 1) / leafSize);
+		}
+
+		// 葉 [first, last] を書き換えたあと、そこから根までの経路だけをハッシュし直す
+		private void rehashNodes(int first, int last) {
+			for (int level = 1; level < levels.length; level++) {
+				first /= 2;
+				last /= 2;
+				for (int i = first; i <= last; i++) {
+					levels[level][i] = hashNode(level, i);
+				}
+			}
+		}
+
+		/**
+		 * other と内容が異なる葉の番号(昇順)。一致する部分木は根から辿る途中で読み飛ばす。
+		 */
+		public List<Integer> diff(MerkleTree other) {
+			if (other.leafSize != leafSize || other.length != length) {
+				throw new IllegalArgumentException("trees must have the same leafSize and length");
+			}
+			List<Integer> changed = new ArrayList<>();
+			collectDiff(other, levels.length - 1, 0, changed);
+			return changed;
+		}
+
+		private void collectDiff(MerkleTree other, int level, int index, List<Integer> changed) {
+			if (Arrays.equals(levels[level][index], other.levels[level][index])) {
+				return;
+			}
+			if (level == 0) {
+				changed.add(index);
+				return;
+			}
+			int left = index * 2;
+			collectDiff(other, level - 1, left, changed);
+			if (left + 1 < levels[level - 1].length) {
+				collectDiff(other, level - 1, left + 1, changed);
+			}
+		}
+
+		// 内部ノードは葉に比べて数も入力も小さいので、1スレッドで下の段から順に計算する
+		private void hashNodes() {
+			for (int level = 1; level < levels.length; level++) {
+				for (int i = 0; i < levels[level].length; i++) {
+					levels[level][i] = hashNode(level, i);
+				}
+			}
+		}
+
+		private byte[] hashNode(int level, int index) {
+			byte[][] below = levels[level - 1];
+			int left = index * 2;
+			if (left + 1 == below.length) {
+				return below[left];
+			}
+			byte[] buf = new byte[1 + below[left].length + below[left + 1].length];
+			buf[0] = NODE_PREFIX;
+			System.arraycopy(below[left], 0, buf, 1, below[left].length);
+			System.arraycopy(below[left + 1], 0, buf, 1 + below[left].length, below[left + 1].length);
+			return crypto.hash(buf);
+		}
+
+		// 葉の中身はコピーせずに hash(ByteBuffer) に渡し、接頭辞はその32バイトのハッシュに付ける
+		private byte[] hashLeaf(ByteBuffer leaf) {
+			byte[] inner = crypto.hash(leaf);
+			byte[] buf = new byte[1 + inner.length];
+			buf[0] = LEAF_PREFIX;
+			System.arraycopy(inner, 0, buf, 1, inner.length);
+			return crypto.hash(buf);
+		}
+
+		private ByteBuffer leafOf(ByteBuffer src, int index) {
+			int from = index * leafSize;
+			return src.slice(from, (int) Math.min(leafSize, length - from));
+		}
+
+		private ByteBuffer mapLeaf(FileChannel channel, int index) throws IOException {
+			long from = (long) index * leafSize;
+			return channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(leafSize, length - from));
+		}
+
+		private FileChannel openSameLength(Path file) throws IOException {
+			FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+			long size;
+			try {
+				size = channel.size();
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+			if (size != length) {
+				channel.close();
+				throw new IllegalArgumentException("file length " + size + " != " + length);
+			}
+			return channel;
+		}
+
+		private ByteBuffer requireSameLength(ByteBuffer data) {
+			ByteBuffer src = data.slice();
+			if (src.remaining() != length) {
+				throw new IllegalArgumentException("data length " + src.remaining() + " != " + length);
+			}
+			return src;
+		}
+
+		private static void requirePositive(int leafSize) {
+			if (leafSize < 1) {
+				throw new IllegalArgumentException("leafSize must be > 0");
+			}
+		}
+
+		// 葉の読み出し。ファイルのマップ失敗は UncheckedIOException に包んで build で戻す
+		@FunctionalInterface
+		private interface LeafSource {
+			ByteBuffer leaf(int index) throws IOException;
+		}
+
+		// 葉の範囲を半分ずつに分け、1葉ずつハッシュする
+		@SuppressWarnings("serial")
+		private static class LeafTask extends RecursiveAction {
+			private final MerkleTree tree;
+			private final LeafSource source;
+			private final int from;
+			private final int to;
+
+			LeafTask(MerkleTree tree, LeafSource source, int from, int to) {
+				this.tree = tree;
+				this.source = source;
+				this.from = from;
+				this.to = to;
+			}
+
+			@Override
+			protected void compute() {
+				if (to - from == 1) {
+					try {
+						tree.levels[0][from] = tree.hashLeaf(source.leaf(from));
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					return;
+				}
+				int mid = (from + to) >>> 1;
+				invokeAll(new LeafTask(tree, source, from, mid), new LeafTask(tree, source, mid, to));
+			}
+		}
 	}
 }
@@ -1,8 +1,22 @@
 package effectiveJava;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongFunction;
+
 public class Item70 {
+	// 同時引き出しのデモ: スレッド数と初期残高
+	private static final int THREADS = 8;
+	private static final long INITIAL_BALANCE = 1_000_000;
 
-	public static void main(String[] args) {
+	public static void main(String[] args) throws InterruptedException, ExecutionException {
 		BankAccount acount = new BankAccount(30, 1_000);
 		try {
 			acount.withdraw(1_000_000);
@@ -11,6 +25,38 @@ public class Item70 {
 			e.printStackTrace();
 		}
 
+		// 複数スレッドから1ずつ引き出し続ける。スレッドセーフな実装なら、成功回数は初期残高とちょうど同じで残高は0
+		withdrawConcurrently("同期なし", balance -> new BankAccount(30, balance));
+		withdrawConcurrently("synchronized", SynchronizedBankAccount::new);
+		withdrawConcurrently("CAS", ConcurrentBankAccount::new);
+	}
+
+	private static void withdrawConcurrently(String label, LongFunction<Account> factory)
+			throws InterruptedException, ExecutionException {
+		Account account = factory.apply(INITIAL_BALANCE);
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		List<Future<Long>> futures = new ArrayList<>();
+		long start = System.nanoTime();
+		for (int t = 0; t < THREADS; t++) {
+			futures.add(pool.submit(() -> {
+				long succeeded = 0;
+				try {
+					while (true) {
+						account.withdraw(1);
+						succeeded++;
+					}
+				} catch (InsufficientFundsException e) {
+					return succeeded;
+				}
+			}));
+		}
+		long total = 0;
+		for (Future<Long> f : futures) {
+			total += f.get();
+		}
+		pool.shutdown();
+		System.out.printf("[%s] 成功した引き出し: %d回, 残高: %d, 実行時間: %.3f ms%n",
+				label, total, account.getBalance(), (System.nanoTime() - start) / 1_000_000.0);
 	}
 
 	// ドメイン的に回復可能(支払い前に残高がない等)
@@ -20,7 +66,15 @@ public class Item70 {
 		}
 	}
 
-	public static class BankAccount {
+	// 口座。引き出しは残高の確認と減算を1つの操作として行う
+	public interface Account {
+		void withdraw(long amount) throws InsufficientFundsException;
+
+		long getBalance();
+	}
+
+	// スレッドセーフではない(確認と減算の間に他のスレッドが割り込める)
+	public static class BankAccount implements Account {
 		int age;
 		long balance;
 
@@ -45,6 +99,89 @@ public class Item70 {
 			balance -= amount;
 		}
 
+		public long getBalance() {
+			return balance;
+		}
+
+	}
+
+	// 比較用: ロックで確認と減算をまとめる
+	public static class SynchronizedBankAccount implements Account {
+		private long balance;
+
+		public SynchronizedBankAccount(long balance) {
+			if (balance < 0) {
+				throw new IllegalArgumentException("balance must be >= 0");
+			}
+			this.balance = balance;
+		}
+
+		public synchronized void withdraw(long amount) throws InsufficientFundsException {
+			if (amount <= 0) {
+				throw new IllegalArgumentException("amount must be > 0");
+			}
+			if (balance < amount) {
+				throw new InsufficientFundsException("残高不足");
+			}
+			balance -= amount;
+		}
+
+		public synchronized long getBalance() {
+			return balance;
+		}
+	}
+
+	/**
+	 * 残高を VarHandle の CAS で更新する、ロックを使わない口座。
+	 * 読んだ残高が足りることを確かめてから「読んだ値のままなら減らす」を CAS で行うので、残高は負にならない。
+	 * CAS に負けたら、乱数つきで待つ回数を倍々に増やしてから読み直す(指数バックオフ)。
+	 * 競合が激しいときに全スレッドが同じキャッシュラインを奪い合い続けるのを避ける。
+	 */
+	public static class ConcurrentBankAccount implements Account {
+		private static final VarHandle BALANCE;
+		// バックオフで待つ回数(Thread.onSpinWait の呼び出し回数)の上限
+		private static final int MAX_BACKOFF_SPINS = 1 << 10;
+
+		static {
+			try {
+				BALANCE = MethodHandles.lookup().findVarHandle(ConcurrentBankAccount.class, "balance", long.class);
+			} catch (ReflectiveOperationException e) {
+				throw new ExceptionInInitializerError(e);
+			}
+		}
+
+		private volatile long balance;
+
+		public ConcurrentBankAccount(long balance) {
+			if (balance < 0) {
+				throw new IllegalArgumentException("balance must be >= 0");
+			}
+			this.balance = balance;
+		}
+
+		public void withdraw(long amount) throws InsufficientFundsException {
+			if (amount <= 0) {
+				throw new IllegalArgumentException("amount must be > 0");
+			}
+			int backoff = 1;
+			while (true) {
+				long current = balance;
+				if (current < amount) {
+					throw new InsufficientFundsException("残高不足");
+				}
+				if (BALANCE.weakCompareAndSet(this, current, current - amount)) {
+					return;
+				}
+				for (int i = ThreadLocalRandom.current().nextInt(backoff); i >= 0; i--) {
+					Thread.onSpinWait();
+				}
+				backoff = Math.min(backoff * 2, MAX_BACKOFF_SPINS);
+			}
+		}
+
+		public long getBalance() {
+			return balance;
+		}
 	}
 
 }
@@ -4,6 +4,12 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import utils.Benchmark;
+import utils.BenchmarkStore;
+import utils.LatencyHistogram;
+import utils.ResourceUsage;
 
 public class Item78 {
 	private static final int THREAD_COUNT = 10;
@@ -15,21 +21,43 @@ public class Item78 {
 		System.out.println("--------------------------------------");
 
 		// 1. 悪い例：同期なし(Race Conditionが発生)
-		SynchronizationLab.testCounter(new UnsafeCounter(), "悪い例：同期なし");
+		SynchronizationLab.testCounter(UnsafeCounter::new, "悪い例：同期なし");
 
 		// 2. 良い例：synchronized
-		SynchronizationLab.testCounter(new SynchronizedCounter(), "良い例：synchronized");
+		SynchronizationLab.testCounter(SynchronizedCounter::new, "良い例：synchronized");
 
 		// 3. 良い例：AtomicInteger
-		SynchronizationLab.testCounter(new AtomicIntergerCounter(), "良い例：AtomicInteger");
+		SynchronizationLab.testCounter(AtomicIntergerCounter::new, "良い例：AtomicInteger");
+
+		BenchmarkStore.report(SynchronizationLab.BENCHMARK.getResults());
 	}
 
 	public static class SynchronizationLab {
 
-		private static void testCounter(Counter counter, String label) throws InterruptedException {
-			ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+		private static final Benchmark BENCHMARK = new Benchmark(5, 20);
+
+		// 計測の反復ごとに新しいカウンターを作り、最後の反復の結果で成否を判定する
+		private static void testCounter(Supplier<Counter> factory, String label) {
+			Counter[] last = new Counter[1];
+			BENCHMARK.run(label, () -> {
+				last[0] = factory.get();
+				runCounter(last[0]);
+			});
+
+			System.out.printf("%-20s -> 結果: %d (%s)%n",
+					label,
+					last[0].get(),
+					(last[0].get() == EXPECTED_TOTAL ? "成功" : "失敗"));
+
+			// increment() 1回ごとの遅延は計時自体のコストが大きいため、スループット計測とは別に1回だけ流す
+			LatencyHistogram histogram = new LatencyHistogram();
+			runCounter(new LatencyRecordingCounter(factory.get(), histogram));
+			histogram.print(label + " increment()");
+		}
+
+		private static void runCounter(Counter counter) {
+			ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT, ResourceUsage.countingThreadFactory());
 
-			long startTime = System.currentTimeMillis();
 			for (int i = 0; i < THREAD_COUNT; i++) {
 				executor.submit(() -> {
 					for (int j = 0; j < INCREMENTS_PER_THREAD; j++) {
@@ -39,14 +67,11 @@ public class Item78 {
 			}
 
 			executor.shutdown();
-			executor.awaitTermination(1, TimeUnit.MINUTES);
-			long endTime = System.currentTimeMillis();
-
-			System.out.printf("%-20s -> 結果: %d (%s) 実行時間: %dms%n",
-					label,
-					counter.get(),
-					(counter.get() == EXPECTED_TOTAL ? "成功" : "失敗"),
-					(endTime - startTime));
+			try {
+				executor.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
 		}
 	}
 
@@ -57,6 +82,27 @@ public class Item78 {
 		int get();
 	}
 
+	// increment() ごとの所要時間をヒストグラムに記録するデコレータ
+	static class LatencyRecordingCounter implements Counter {
+		private final Counter delegate;
+		private final LatencyHistogram histogram;
+
+		LatencyRecordingCounter(Counter delegate, LatencyHistogram histogram) {
+			this.delegate = delegate;
+			this.histogram = histogram;
+		}
+
+		public void increment() {
+			long start = System.nanoTime();
+			delegate.increment();
+			histogram.recordSince(start);
+		}
+
+		public int get() {
+			return delegate.get();
+		}
+	}
+
 	// 悪い例：同期なし
 	public static class UnsafeCounter implements Counter {
 		private int count = 0;
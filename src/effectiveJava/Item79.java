@@ -3,10 +3,23 @@ package effectiveJava;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import utils.Benchmark;
+import utils.BenchmarkStore;
+import utils.LatencyHistogram;
+import utils.ResourceUsage;
 
 public class Item79 {
 	private static final int THREAD_COUNT = 10;
 	private static final int TASKS_PER__THREAD = 5;
+	// 1回の計測が秒単位のスリープ主体なので、ウォームアップなしで数回だけ繰り返す
+	private static final Benchmark BENCHMARK = new Benchmark(0, 3);
 
 	public static void main(String[] args) throws InterruptedException {
 		System.out.println("=== 1. 悪い例：長時間ロック(I/Oをロック内で実行) ===");
@@ -14,27 +27,52 @@ public class Item79 {
 
 		System.out.println("=== 2. 良い例：最小限の同期(I/Oをロック外で実行) ===");
 		testPerformance(new MinimalSyncStore(), "最小限の同期");
+
+		BenchmarkStore.report(BENCHMARK.getResults());
 	}
 
 	public static void testPerformance(DataStore store, String label) throws InterruptedException {
-		ExecutorService executor = Executors.newFixedThreadPool(TASKS_PER__THREAD);
-		long startTime = System.currentTimeMillis();
+		// スリープ主体で計時のコストは無視できるので、計測反復の中で updateData() ごとの遅延も取る
+		LatencyHistogram histogram = new LatencyHistogram();
+		AtomicInteger runs = new AtomicInteger();
+		BENCHMARK.run(label, () -> {
+			// ウォームアップ中の記録は捨て、計測反復の分だけにする
+			if (runs.getAndIncrement() == BENCHMARK.getWarmupIterations()) {
+				histogram.reset();
+			}
+			runTasks(store, histogram);
+		});
+		histogram.print(label + " updateData()");
+	}
+
+	private static void runTasks(DataStore store, LatencyHistogram histogram) throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(TASKS_PER__THREAD, ResourceUsage.countingThreadFactory());
 
 		for (int i = 0; i < THREAD_COUNT * TASKS_PER__THREAD; i++) {
-			executor.submit(store::updateData);
+			executor.submit(() -> {
+				long start = System.nanoTime();
+				store.updateData();
+				histogram.recordSince(start);
+			});
 		}
 
 		executor.shutdown();
 		executor.awaitTermination(1, TimeUnit.MINUTES);
-		long endTime = System.currentTimeMillis();
-
-		System.out.printf("%s -> 完了までの時間: %dms%n", label, (endTime - startTime));
 	}
 
 	public interface DataStore {
 		void updateData();
 	}
 
+	// ロックを保持していた時間を JFR に記録する
+	@Name("effectiveJava.Item79.LockHold")
+	@Label("Lock Hold")
+	@Category({ "Effective Java", "Item79" })
+	static class LockHoldEvent extends Event {
+		@Label("Store")
+		String store;
+	}
+
 	// 悪い例；ロックの中で重い処理(模擬I/O)をしてしまう
 	public static class LongLockStore implements DataStore {
 		private String data;
@@ -42,9 +80,13 @@ public class Item79 {
 
 		public void updateData() {
 			synchronized (lock) {
+				LockHoldEvent event = new LockHoldEvent();
+				event.begin();
 				// NG:ロックを保持したまま重い処理(100msスリープ)
 				String result = simulateHeavyIO();
 				this.data = result;
+				event.store = "LongLockStore";
+				event.commit();
 			}
 		}
 
@@ -69,7 +111,11 @@ public class Item79 {
 
 			// 最後の書き換えの瞬間だけ同期(クリティカルセクションの極小化)
 			synchronized (lock) {
+				LockHoldEvent event = new LockHoldEvent();
+				event.begin();
 				this.data = result;
+				event.store = "MinimalSyncStore";
+				event.commit();
 			}
 
 		}
@@ -11,8 +11,14 @@ import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import utils.Benchmark;
+import utils.BenchmarkStore;
+import utils.LatencyHistogram;
+import utils.ResourceUsage;
+
 public class Item80 {
 	private static final int TASK_COUNT = 10_000;
+	private static final Benchmark BENCHMARK = new Benchmark(3, 10);
 
 	public static void main(String[] args) throws InterruptedException {
 		System.out.println("=== 検証開始: Task Count = " + TASK_COUNT + " ===");
@@ -26,6 +32,8 @@ public class Item80 {
 
 		// 3. CompletableFuture による合成 (モダンなパターン)
 		verifyCompletableFuture();
+
+		BenchmarkStore.report(BENCHMARK.getResults());
 	}
 
 	/**
@@ -58,16 +66,40 @@ public class Item80 {
 	static void verifyExecutorService() throws InterruptedException {
 		System.out.println("\n[検証2]ExecutorService(FixedThreadPool)");
 		int poolSize = Runtime.getRuntime().availableProcessors();
-		ExecutorService executor = Executors.newFixedThreadPool(poolSize);
 
 		AtomicInteger successCount = new AtomicInteger();
 		AtomicInteger failureCount = new AtomicInteger();
+		// 投入からタスク開始までの待ち時間(キューイング遅延)の分布
+		LatencyHistogram queueing = new LatencyHistogram();
+		AtomicInteger runs = new AtomicInteger();
+
+		// 反復ごとにプールを作り直し、起動・終了まで含めた時間を分布で見る
+		BENCHMARK.run("ExecutorService", () -> {
+			// 待ち時間の分布は計測反復の分だけにする
+			if (runs.getAndIncrement() == BENCHMARK.getWarmupIterations()) {
+				queueing.reset();
+			}
+			successCount.set(0);
+			failureCount.set(0);
+			runTasks(poolSize, successCount, failureCount, queueing);
+		});
 
-		long start = System.currentTimeMillis();
+		System.out.printf("成功: %d, 失敗: %d (最後の反復)\n",
+				successCount.get(), failureCount.get());
+		queueing.print("ExecutorService 待ち時間");
+	}
+
+	private static void runTasks(int poolSize, AtomicInteger successCount, AtomicInteger failureCount,
+			LatencyHistogram queueing) throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(poolSize, ResourceUsage.countingThreadFactory());
 		List<Callable<Integer>> tasks = new ArrayList<>();
 
+		// invokeAll はまとめて投入するので、全タスク共通の投入時刻からの待ちを記録する。
+		// 投入時刻はタスクを作り終えてから取る(作る時間を待ちに含めない)
+		long[] submitted = new long[1];
 		for (int i = 0; i < TASK_COUNT; i++) {
 			tasks.add(() -> {
+				queueing.recordSince(submitted[0]);
 				if (Math.random() < 0.1) {
 					throw new RuntimeException("エラー発生");
 				}
@@ -75,6 +107,7 @@ public class Item80 {
 			});
 		}
 
+		submitted[0] = System.nanoTime();
 		List<Future<Integer>> futures = executor.invokeAll(tasks);
 
 		for (Future<Integer> f : futures) {
@@ -87,10 +120,6 @@ public class Item80 {
 
 		executor.shutdown();
 		executor.awaitTermination(1, TimeUnit.MINUTES);
-
-		long end = System.currentTimeMillis();
-		System.out.printf("完了時間: %d ms, 成功: %d, 失敗: %d\n",
-				(end - start), successCount.get(), failureCount.get());
 	}
 
 	/**
@@ -8,6 +8,11 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
 public class Item81 {
 
 	public static void main(String[] args) throws InterruptedException {
@@ -33,6 +38,7 @@ public class Item81 {
 		Thread producer = new Thread(() -> {
 			for (int i = 0; i < 5; i++) {
 				buffer.put("Data-" + i);
+				System.out.println("Produced: Data-" + i);
 			}
 		});
 		Thread consumer = new Thread(() -> {
@@ -118,6 +124,15 @@ public class Item81 {
 		System.out.println("全員がゴールしました。");
 		exec.shutdown();
 	}
+
+	// BadBuffer の put/take がモニタに入ってから条件が整うまで待った時間を JFR に記録する
+	@Name("effectiveJava.Item81.QueueWait")
+	@Label("Queue Wait")
+	@Category({ "Effective Java", "Item81" })
+	static class QueueWaitEvent extends Event {
+		@Label("Operation")
+		String operation;
+	}
 }
 
 /**
@@ -128,6 +143,8 @@ class BadBuffer {
 	private final int CAP = 10;
 
 	public synchronized void put(String s) {
+		Item81.QueueWaitEvent event = new Item81.QueueWaitEvent();
+		event.begin();
 		// while を使わないと「スプリアス・ウェイクアップ」が起きる
 		while (q.size() == CAP) {
 			try {
@@ -136,12 +153,15 @@ class BadBuffer {
 				Thread.currentThread().interrupt();
 			}
 		}
+		event.operation = "put";
+		event.commit();
 		q.add(s);
-		System.out.println("Produced: " + s);
 		notifyAll();// 指定のコンシューマーだけ起こすことはできないため全起こし
 	}
 
 	public synchronized String take() {
+		Item81.QueueWaitEvent event = new Item81.QueueWaitEvent();
+		event.begin();
 		// whileを使わないと、「スプリアス・ウェイクアップ」が起きる
 		while (q.isEmpty()) {
 			try {
@@ -150,6 +170,8 @@ class BadBuffer {
 				Thread.currentThread().interrupt();
 			}
 		}
+		event.operation = "take";
+		event.commit();
 		String r = q.remove();
 		notifyAll(); // 指定のコンシューマーだけ起こすことはできないため全起こし
 		return r;
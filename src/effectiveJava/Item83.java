@@ -5,6 +5,11 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
 public class Item83 {
 
 	public static void main(String[] args) throws InterruptedException {
@@ -66,12 +71,15 @@ public class Item83 {
 		private static final AtomicInteger constructorCount = new AtomicInteger(0);
 
 		public HeavyResource() {
+			InitializationEvent event = new InitializationEvent();
+			event.begin();
 			constructorCount.incrementAndGet();
 			// 初期化が重いことをシミュレート
 			try {
 				Thread.sleep(5);
 			} catch (InterruptedException e) {
 			}
+			event.commit();
 		}
 
 		public static int getCount() {
@@ -83,6 +91,13 @@ public class Item83 {
 		}
 	}
 
+	// HeavyResource の初期化1回分を JFR に記録する(同期なしだと複数回記録される)
+	@Name("effectiveJava.Item83.HeavyResourceInit")
+	@Label("HeavyResource Initialization")
+	@Category({ "Effective Java", "Item83" })
+	static class InitializationEvent extends Event {
+	}
+
 	// 悪い例: 同期なし
 	static class UnsafeLazy {
 		private HeavyResource resource;
@@ -0,0 +1,327 @@
+package utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ウォームアップ・計測反復・(任意で)フォークしたJVMでタスクを繰り返し実行し、
+ * 1回の start/stop では見えないばらつきを統計値で報告するランナー。
+ */
+public class Benchmark {
+	// フォークした子JVMが計測結果を親に返すときの行の接頭辞
+	private static final String SAMPLES_PREFIX = "#samples ";
+	private static final String USAGE_PREFIX = "#usage ";
+
+	// t分布(両側95%)の臨界値。添字 = 自由度 - 1。自由度30超は正規近似(1.96)を使う
+	private static final double[] T_95 = {
+			12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+			2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+			2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042 };
+
+	// 計測結果が使われないと JIT に処理ごと消されるので、ここへ書き込んで「使ったこと」にする
+	private static volatile Object sink;
+
+	// 計測対象の処理。ラボのメソッドが検査例外を投げてもそのまま渡せるようにする
+	@FunctionalInterface
+	public interface Task {
+		void run() throws Exception;
+	}
+
+	private final int warmupIterations;
+	private final int measurementIterations;
+	private final int forks;
+	// このランナーで計測した結果(BenchmarkStore で保存・比較する)
+	private final List<Result> results = new ArrayList<>();
+
+	public Benchmark(int warmupIterations, int measurementIterations) {
+		this(warmupIterations, measurementIterations, 0);
+	}
+
+	public Benchmark(int warmupIterations, int measurementIterations, int forks) {
+		if (warmupIterations < 0) {
+			throw new IllegalArgumentException("warmupIterations must be >= 0");
+		}
+		if (measurementIterations < 1) {
+			throw new IllegalArgumentException("measurementIterations must be > 0");
+		}
+		if (forks < 0) {
+			throw new IllegalArgumentException("forks must be >= 0");
+		}
+		this.warmupIterations = warmupIterations;
+		this.measurementIterations = measurementIterations;
+		this.forks = forks;
+	}
+
+	/**
+	 * 現在のJVM内で計測する。ラムダやメソッド参照をそのまま渡せる。
+	 */
+	public Result run(String label, Task task) {
+		Result result = measure(label, task, warmupIterations, measurementIterations);
+		result.print();
+		results.add(result);
+		return result;
+	}
+
+	/**
+	 * forks > 0 の場合は、フォークごとに新しいJVMを起動して計測し、全サンプルをまとめる。
+	 * JITのプロファイルがラボ同士で混ざらないので、順番に依存した結果になりにくい。
+	 * タスククラスは public で引数なしの public コンストラクタを持つ必要がある。
+	 */
+	public Result run(String label, Class<? extends Task> taskClass) {
+		if (forks == 0) {
+			return run(label, newTask(taskClass));
+		}
+
+		List<Result> perFork = new ArrayList<>();
+		for (int i = 0; i < forks; i++) {
+			perFork.add(fork(label, taskClass));
+		}
+		Result result = Result.merge(label, perFork);
+		result.print();
+		results.add(result);
+		return result;
+	}
+
+	// タスク側で計測反復だけを数えたいとき(ウォームアップ分の記録を捨てるなど)に使う
+	public int getWarmupIterations() {
+		return warmupIterations;
+	}
+
+	public List<Result> getResults() {
+		return new ArrayList<>(results);
+	}
+
+	/**
+	 * タスクの戻り値を捨てずに渡すことで、デッドコード除去を防ぐ。
+	 */
+	public static void consume(Object value) {
+		sink = value;
+	}
+
+	private static Result measure(String label, Task task, int warmup, int iterations) {
+		try {
+			for (int i = 0; i < warmup; i++) {
+				task.run();
+			}
+			long[] samples = new long[iterations];
+			// 割り当てとGCは計測反復全体で取り、1回あたりに均す
+			ResourceUsage before = ResourceUsage.now();
+			for (int i = 0; i < iterations; i++) {
+				long start = System.nanoTime();
+				task.run();
+				samples[i] = System.nanoTime() - start;
+			}
+			ResourceUsage usage = ResourceUsage.now().since(before);
+			double allocatedPerOp = (usage.getAllocatedBytes() < 0)
+					? -1
+					: (double) usage.getAllocatedBytes() / iterations;
+			return new Result(label, samples, allocatedPerOp, usage.getGcCount(), usage.getGcTimeMillis());
+		} catch (Exception e) {
+			throw new IllegalStateException("benchmark task failed: " + label, e);
+		}
+	}
+
+	private Result fork(String label, Class<? extends Task> taskClass) {
+		List<String> command = new ArrayList<>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+			// デバッガのポートが衝突するので子JVMには引き継がない
+			if (!arg.startsWith("-agentlib:jdwp")) {
+				command.add(arg);
+			}
+		}
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(Benchmark.class.getName());
+		command.add(taskClass.getName());
+		command.add(String.valueOf(warmupIterations));
+		command.add(String.valueOf(measurementIterations));
+
+		try {
+			Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+			long[] samples = null;
+			String[] usage = null;
+			try (BufferedReader reader = new BufferedReader(
+					new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.startsWith(SAMPLES_PREFIX)) {
+						samples = parseSamples(line.substring(SAMPLES_PREFIX.length()));
+					} else if (line.startsWith(USAGE_PREFIX)) {
+						usage = line.substring(USAGE_PREFIX.length()).split(" ");
+					}
+				}
+			}
+			int exitCode = process.waitFor();
+			if (exitCode != 0 || samples == null || usage == null) {
+				throw new IllegalStateException("forked benchmark failed: " + label + " (exit " + exitCode + ")");
+			}
+			return new Result(label, samples, Double.parseDouble(usage[0]),
+					Long.parseLong(usage[1]), Long.parseLong(usage[2]));
+		} catch (IOException e) {
+			throw new IllegalStateException("cannot fork benchmark: " + label, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while waiting for fork: " + label, e);
+		}
+	}
+
+	private static Task newTask(Class<? extends Task> taskClass) {
+		try {
+			return taskClass.getConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalArgumentException("task class needs a public no-arg constructor: " + taskClass, e);
+		}
+	}
+
+	private static long[] parseSamples(String csv) {
+		return Arrays.stream(csv.split(",")).mapToLong(Long::parseLong).toArray();
+	}
+
+	/**
+	 * フォークされた子JVMのエントリポイント。
+	 * 引数: タスククラス名, ウォームアップ回数, 計測回数
+	 */
+	public static void main(String[] args) throws ClassNotFoundException {
+		Class<? extends Task> taskClass = Class.forName(args[0]).asSubclass(Task.class);
+		Result result = measure(taskClass.getName(), newTask(taskClass),
+				Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+
+		StringBuilder b = new StringBuilder(SAMPLES_PREFIX);
+		for (int i = 0; i < result.sortedNanos.length; i++) {
+			if (i > 0) {
+				b.append(',');
+			}
+			b.append(result.sortedNanos[i]);
+		}
+		System.out.println(b);
+		System.out.println(USAGE_PREFIX + result.allocatedBytesPerOp + " " + result.gcCount + " " + result.gcTimeMillis);
+	}
+
+	/**
+	 * 1ラベル分の計測結果。サンプルはナノ秒で保持し、表示はミリ秒で行う。
+	 */
+	public static class Result {
+		private final String label;
+		private final long[] sortedNanos;
+		// 1回の実行あたりの割り当てバイト数(不明な場合は -1)
+		private final double allocatedBytesPerOp;
+		private final long gcCount;
+		private final long gcTimeMillis;
+
+		public Result(String label, long[] samplesNanos) {
+			this(label, samplesNanos, -1, 0, 0);
+		}
+
+		public Result(String label, long[] samplesNanos, double allocatedBytesPerOp, long gcCount, long gcTimeMillis) {
+			if (samplesNanos.length == 0) {
+				throw new IllegalArgumentException("samples must not be empty");
+			}
+			this.label = label;
+			this.sortedNanos = samplesNanos.clone();
+			Arrays.sort(this.sortedNanos);
+			this.allocatedBytesPerOp = allocatedBytesPerOp;
+			this.gcCount = gcCount;
+			this.gcTimeMillis = gcTimeMillis;
+		}
+
+		// フォークごとの結果を1つにまとめる。割り当ては平均、GCは合計
+		static Result merge(String label, List<Result> results) {
+			long[] samples = results.stream().flatMapToLong(r -> Arrays.stream(r.sortedNanos)).toArray();
+			double allocated = results.stream().anyMatch(r -> r.allocatedBytesPerOp < 0)
+					? -1
+					: results.stream().mapToDouble(r -> r.allocatedBytesPerOp).average().orElse(-1);
+			long gcCount = results.stream().mapToLong(r -> r.gcCount).sum();
+			long gcTime = results.stream().mapToLong(r -> r.gcTimeMillis).sum();
+			return new Result(label, samples, allocated, gcCount, gcTime);
+		}
+
+		public String getLabel() {
+			return label;
+		}
+
+		public int getSampleCount() {
+			return sortedNanos.length;
+		}
+
+		public long[] getSamplesNanos() {
+			return sortedNanos.clone();
+		}
+
+		public double getAllocatedBytesPerOp() {
+			return allocatedBytesPerOp;
+		}
+
+		public long getGcCount() {
+			return gcCount;
+		}
+
+		public long getGcTimeMillis() {
+			return gcTimeMillis;
+		}
+
+		public double min() {
+			return toMillis(sortedNanos[0]);
+		}
+
+		public double max() {
+			return toMillis(sortedNanos[sortedNanos.length - 1]);
+		}
+
+		public double mean() {
+			return toMillis(meanNanos());
+		}
+
+		// nearest-rank 法によるパーセンタイル(p は 0 < p <= 100)
+		public double percentile(double p) {
+			if (p <= 0 || p > 100) {
+				throw new IllegalArgumentException("p must be in (0, 100]");
+			}
+			int rank = (int) Math.ceil(p / 100.0 * sortedNanos.length);
+			return toMillis(sortedNanos[Math.max(rank, 1) - 1]);
+		}
+
+		// 平均の95%信頼区間の半幅(ミリ秒)。サンプルが1つだけなら区間は求められない
+		public double confidenceInterval95() {
+			int n = sortedNanos.length;
+			if (n < 2) {
+				return Double.NaN;
+			}
+			double mean = meanNanos();
+			double sumSq = 0;
+			for (long s : sortedNanos) {
+				sumSq += (s - mean) * (s - mean);
+			}
+			double stdDev = Math.sqrt(sumSq / (n - 1));
+			double t = (n - 1 <= T_95.length) ? T_95[n - 2] : 1.96;
+			return toMillis(t * stdDev / Math.sqrt(n));
+		}
+
+		public void print() {
+			System.out.printf("[%s] n=%d min: %.3f ms, mean: %.3f ms (±%.3f, 95%% CI), p50: %.3f ms, p99: %.3f ms, max: %.3f ms,"
+					+ " 割り当て: %s/op, GC: %d回 (%d ms)%n",
+					label, getSampleCount(), min(), mean(), confidenceInterval95(),
+					percentile(50), percentile(99), max(),
+					StopWatch.formatBytes(allocatedBytesPerOp, 1), gcCount, gcTimeMillis);
+		}
+
+		private double meanNanos() {
+			double sum = 0;
+			for (long s : sortedNanos) {
+				sum += s;
+			}
+			return sum / sortedNanos.length;
+		}
+
+		private static double toMillis(double nanos) {
+			return nanos / 1_000_000.0;
+		}
+	}
+}
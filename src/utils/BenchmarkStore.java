@@ -0,0 +1,265 @@
+package utils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link Benchmark.Result} をラベルごとに1行の CSV として保存し、過去の結果(ベースライン)と比較する。
+ *
+ * 比較は Mann-Whitney の U 検定(正規近似・同順位補正つき)で行い、有意(p &lt; 0.05)に遅くなったラベルを回帰として報告する。
+ * 正規近似なので、各ラベルのサンプル数は 8 以上あるのが望ましい。
+ *
+ * ラボの main の最後で {@link #report(Collection)} を呼ぶと、次のシステムプロパティに応じて動く。
+ * <ul>
+ * <li>-Dbenchmark.save=path ... 今回の結果を保存する</li>
+ * <li>-Dbenchmark.baseline=path ... ベースラインを読み込んで比較結果を表示する</li>
+ * </ul>
+ */
+public class BenchmarkStore {
+	public static final double ALPHA = 0.05;
+
+	private static final String HEADER = "label,n,mean_ms,p50_ms,p99_ms,alloc_bytes_per_op,gc_count,gc_ms,samples_nanos";
+
+	private BenchmarkStore() {
+	}
+
+	public static void report(Collection<Benchmark.Result> results) {
+		try {
+			String save = System.getProperty("benchmark.save");
+			if (save != null) {
+				save(Paths.get(save), results);
+				System.out.println("結果を保存しました: " + save);
+			}
+			String baseline = System.getProperty("benchmark.baseline");
+			if (baseline != null) {
+				for (Comparison c : compare(load(Paths.get(baseline)), results)) {
+					c.print();
+				}
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("cannot read or write benchmark results", e);
+		}
+	}
+
+	public static void save(Path file, Collection<Benchmark.Result> results) throws IOException {
+		try (BufferedWriter w = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			w.write(HEADER);
+			w.newLine();
+			for (Benchmark.Result r : results) {
+				StringBuilder samples = new StringBuilder();
+				for (long s : r.getSamplesNanos()) {
+					if (samples.length() > 0) {
+						samples.append(';');
+					}
+					samples.append(s);
+				}
+				w.write(String.join(",",
+						quote(r.getLabel()),
+						String.valueOf(r.getSampleCount()),
+						String.valueOf(r.mean()),
+						String.valueOf(r.percentile(50)),
+						String.valueOf(r.percentile(99)),
+						String.valueOf(r.getAllocatedBytesPerOp()),
+						String.valueOf(r.getGcCount()),
+						String.valueOf(r.getGcTimeMillis()),
+						samples));
+				w.newLine();
+			}
+		}
+	}
+
+	/**
+	 * 保存した CSV を読み込む。統計値の列は表示用なので、サンプル列から結果を組み立て直す。
+	 * 空のファイルは結果なし(空の Map)になる。
+	 */
+	public static Map<String, Benchmark.Result> load(Path file) throws IOException {
+		Map<String, Benchmark.Result> results = new LinkedHashMap<>();
+		List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		// 空のファイル(保存が途中で失敗したなど)はヘッダもないので、結果なしとして扱う
+		for (String line : lines.subList(Math.min(1, lines.size()), lines.size())) {
+			if (line.isBlank()) {
+				continue;
+			}
+			List<String> cols = parseRow(line);
+			if (cols.size() != 9) {
+				throw new IOException("malformed benchmark row: " + line);
+			}
+			long[] samples = Arrays.stream(cols.get(8).split(";")).mapToLong(Long::parseLong).toArray();
+			results.put(cols.get(0), new Benchmark.Result(cols.get(0), samples,
+					Double.parseDouble(cols.get(5)), Long.parseLong(cols.get(6)), Long.parseLong(cols.get(7))));
+		}
+		return results;
+	}
+
+	/**
+	 * current の各ラベルをベースラインの同じラベルと比較する。ベースラインにないラベルは対象外。
+	 */
+	public static List<Comparison> compare(Map<String, Benchmark.Result> baseline, Collection<Benchmark.Result> current) {
+		List<Comparison> comparisons = new ArrayList<>();
+		for (Benchmark.Result r : current) {
+			Benchmark.Result base = baseline.get(r.getLabel());
+			if (base != null) {
+				comparisons.add(new Comparison(base, r));
+			}
+		}
+		return comparisons;
+	}
+
+	/**
+	 * 両側 Mann-Whitney U 検定の p 値。x と y の分布に差がないという帰無仮説を検定する。
+	 */
+	static double mannWhitneyPValue(long[] x, long[] y) {
+		int n1 = x.length;
+		int n2 = y.length;
+		int n = n1 + n2;
+		long[] all = new long[n];
+		System.arraycopy(x, 0, all, 0, n1);
+		System.arraycopy(y, 0, all, n1, n2);
+		Arrays.sort(all);
+
+		// 同順位には平均順位を与え、分散の補正項 Σ(t^3 - t) も同時に求める
+		double rankSumX = 0;
+		double tieTerm = 0;
+		long[] sortedX = x.clone();
+		Arrays.sort(sortedX);
+		int xi = 0;
+		for (int i = 0; i < n;) {
+			int j = i;
+			while (j < n && all[j] == all[i]) {
+				j++;
+			}
+			double avgRank = (i + 1 + j) / 2.0;
+			int t = j - i;
+			tieTerm += (double) t * t * t - t;
+			while (xi < n1 && sortedX[xi] == all[i]) {
+				rankSumX += avgRank;
+				xi++;
+			}
+			i = j;
+		}
+
+		double u = rankSumX - n1 * (n1 + 1) / 2.0;
+		double mean = n1 * (double) n2 / 2.0;
+		double variance = n1 * (double) n2 / 12.0 * ((n + 1) - tieTerm / ((double) n * (n - 1)));
+		if (variance <= 0) {
+			return 1.0;
+		}
+		// 連続修正つきの正規近似
+		double z = Math.max(Math.abs(u - mean) - 0.5, 0) / Math.sqrt(variance);
+		return Math.min(1.0, 2 * (1 - normalCdf(z)));
+	}
+
+	// Abramowitz & Stegun 7.1.26 による erf の近似(誤差 1.5e-7 以下)
+	private static double normalCdf(double z) {
+		double x = Math.abs(z) / Math.sqrt(2);
+		double t = 1 / (1 + 0.3275911 * x);
+		double erf = 1 - (((((1.061405429 * t - 1.453152027) * t) + 1.421413741) * t - 0.284496736) * t
+				+ 0.254829592) * t * Math.exp(-x * x);
+		return (z >= 0) ? (1 + erf) / 2 : (1 - erf) / 2;
+	}
+
+	private static String quote(String s) {
+		if (s.indexOf(',') < 0 && s.indexOf('"') < 0) {
+			return s;
+		}
+		return '"' + s.replace("\"", "\"\"") + '"';
+	}
+
+	private static List<String> parseRow(String line) {
+		List<String> cols = new ArrayList<>();
+		StringBuilder cur = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					cur.append('"');
+					i++;
+				} else if (c == '"') {
+					quoted = false;
+				} else {
+					cur.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				cols.add(cur.toString());
+				cur.setLength(0);
+			} else {
+				cur.append(c);
+			}
+		}
+		cols.add(cur.toString());
+		return cols;
+	}
+
+	/**
+	 * ベースラインと今回の結果を比較し、回帰があれば終了コード 1 で終わる。
+	 * 引数: ベースラインの CSV, 今回の CSV
+	 */
+	public static void main(String[] args) throws IOException {
+		Map<String, Benchmark.Result> baseline = load(Paths.get(args[0]));
+		Map<String, Benchmark.Result> current = load(Paths.get(args[1]));
+		boolean regressed = false;
+		for (Comparison c : compare(baseline, current.values())) {
+			c.print();
+			regressed |= c.isRegression();
+		}
+		if (regressed) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * 1ラベル分の比較結果。
+	 */
+	public static class Comparison {
+		private final Benchmark.Result baseline;
+		private final Benchmark.Result current;
+		private final double pValue;
+
+		Comparison(Benchmark.Result baseline, Benchmark.Result current) {
+			this.baseline = baseline;
+			this.current = current;
+			this.pValue = mannWhitneyPValue(baseline.getSamplesNanos(), current.getSamplesNanos());
+		}
+
+		public String getLabel() {
+			return current.getLabel();
+		}
+
+		public double getPValue() {
+			return pValue;
+		}
+
+		// 中央値の変化率(正なら遅くなった)
+		public double getChangeRatio() {
+			return current.percentile(50) / baseline.percentile(50) - 1;
+		}
+
+		public boolean isRegression() {
+			return pValue < ALPHA && getChangeRatio() > 0;
+		}
+
+		public boolean isImprovement() {
+			return pValue < ALPHA && getChangeRatio() < 0;
+		}
+
+		public void print() {
+			String verdict = isRegression() ? "回帰" : isImprovement() ? "改善" : "有意差なし";
+			System.out.printf("[%s] p50: %.3f ms -> %.3f ms (%+.1f%%), p=%.4f => %s%n",
+					getLabel(), baseline.percentile(50), current.percentile(50),
+					getChangeRatio() * 100, pValue, verdict);
+		}
+	}
+}
@@ -0,0 +1,230 @@
+package utils;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * HdrHistogram 風の対数-線形バケットを持つ、ロックフリーで固定メモリのレイテンシヒストグラム(単位: ナノ秒)。
+ *
+ * 2のべき乗ごとの区間を 2^(precisionBits-1) 個の等幅バケットに分けるので、相対誤差は 2^-(precisionBits-1) 以下。
+ * 記録はスレッドごとに乱数で選んだストライプ(AtomicLongArray)に加算するだけで、CAS が競合したら別のストライプに移る
+ * (LongAdder と同じ考え方)。多数のスレッドが同時に記録しても同じキャッシュラインを奪い合いにくい。
+ * 読み出し(percentile など)は記録と並行して呼べるが、値は弱一貫。
+ */
+public class LatencyHistogram {
+	// 既定の精度。相対誤差 1% 未満で、テールのパーセンタイルどうしを区別できる
+	private static final int DEFAULT_PRECISION_BITS = 8;
+
+	// スレッドが今使っているストライプを選ぶ乱数(全ヒストグラムで共有)。競合したら引き直す
+	private static final ThreadLocal<int[]> PROBE = ThreadLocal
+			.withInitial(() -> new int[] { ThreadLocalRandom.current().nextInt() });
+
+	private final int precisionBits;
+	// 0..subBucketCount-1 は 1ns 刻みで正確に数える
+	private final int subBucketCount;
+	private final int halfCount;
+	private final int bucketCount;
+	private final AtomicLongArray[] stripes;
+	private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong max = new AtomicLong(0);
+
+	public LatencyHistogram() {
+		this(DEFAULT_PRECISION_BITS);
+	}
+
+	public LatencyHistogram(int precisionBits) {
+		this(precisionBits, Runtime.getRuntime().availableProcessors());
+	}
+
+	public LatencyHistogram(int precisionBits, int concurrency) {
+		if (precisionBits < 2 || precisionBits > 16) {
+			throw new IllegalArgumentException("precisionBits must be in [2, 16]");
+		}
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("concurrency must be > 0");
+		}
+		this.precisionBits = precisionBits;
+		this.subBucketCount = 1 << precisionBits;
+		this.halfCount = subBucketCount / 2;
+		// 最上位ビットが precisionBits..62 の値それぞれに halfCount 個のバケット
+		this.bucketCount = subBucketCount + (63 - precisionBits) * halfCount;
+
+		int stripeCount = Integer.highestOneBit(Math.min(concurrency, 64) * 2 - 1);
+		this.stripes = new AtomicLongArray[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			stripes[i] = new AtomicLongArray(bucketCount);
+		}
+	}
+
+	/**
+	 * 1件記録する。負の値は 0 として扱う。ホットパスで割り当ては発生しない。
+	 */
+	public void record(long valueNanos) {
+		long value = Math.max(valueNanos, 0);
+		int index = indexOf(value);
+		int[] probe = PROBE.get();
+		AtomicLongArray stripe = stripes[probe[0] & (stripes.length - 1)];
+		long c = stripe.get(index);
+		if (!stripe.compareAndSet(index, c, c + 1)) {
+			probe[0] = ThreadLocalRandom.current().nextInt();
+			stripes[probe[0] & (stripes.length - 1)].getAndIncrement(index);
+		}
+		updateMin(value);
+		updateMax(value);
+	}
+
+	/**
+	 * System.nanoTime() で取った開始時刻から現在までを記録する。
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * other の記録をこのヒストグラムに加える。精度(precisionBits)が同じものどうしだけ合算できる。
+	 */
+	public void merge(LatencyHistogram other) {
+		if (other.precisionBits != precisionBits) {
+			throw new IllegalArgumentException("precisionBits mismatch: " + other.precisionBits + " != " + precisionBits);
+		}
+		AtomicLongArray target = stripes[PROBE.get()[0] & (stripes.length - 1)];
+		for (int i = 0; i < bucketCount; i++) {
+			long c = other.countAt(i);
+			if (c != 0) {
+				target.getAndAdd(i, c);
+			}
+		}
+		if (other.count() > 0) {
+			updateMin(other.min.get());
+			updateMax(other.max.get());
+		}
+	}
+
+	public long count() {
+		long total = 0;
+		for (int i = 0; i < bucketCount; i++) {
+			total += countAt(i);
+		}
+		return total;
+	}
+
+	public long min() {
+		return (count() == 0) ? 0 : min.get();
+	}
+
+	public long max() {
+		return max.get();
+	}
+
+	public double mean() {
+		long total = 0;
+		double sum = 0;
+		for (int i = 0; i < bucketCount; i++) {
+			long c = countAt(i);
+			if (c != 0) {
+				total += c;
+				sum += (double) c * ((lowestEquivalent(i) + highestEquivalent(i)) / 2.0);
+			}
+		}
+		return (total == 0) ? 0 : sum / total;
+	}
+
+	/**
+	 * p パーセンタイル(0 < p <= 100)の値を返す。バケット内で最大の値を返すので、実値以上になる側に丸まる。
+	 */
+	public long percentile(double p) {
+		if (p <= 0 || p > 100) {
+			throw new IllegalArgumentException("p must be in (0, 100]");
+		}
+		long[] counts = new long[bucketCount];
+		long total = 0;
+		for (int i = 0; i < bucketCount; i++) {
+			counts[i] = countAt(i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max((long) Math.ceil(p / 100.0 * total), 1);
+		long seen = 0;
+		for (int i = 0; i < bucketCount; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(highestEquivalent(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * 記録をすべて捨てる。記録と並行して呼ぶと、その間の記録は残ることも消えることもある。
+	 */
+	public void reset() {
+		for (AtomicLongArray stripe : stripes) {
+			for (int i = 0; i < bucketCount; i++) {
+				stripe.set(i, 0);
+			}
+		}
+		min.set(Long.MAX_VALUE);
+		max.set(0);
+	}
+
+	public void print(String label) {
+		System.out.printf("[%s] n=%d p50: %.3f µs, p99: %.3f µs, p99.9: %.3f µs, max: %.3f µs%n",
+				label, count(),
+				percentile(50) / 1_000.0,
+				percentile(99) / 1_000.0,
+				percentile(99.9) / 1_000.0,
+				max() / 1_000.0);
+	}
+
+	private long countAt(int index) {
+		long c = 0;
+		for (AtomicLongArray stripe : stripes) {
+			c += stripe.get(index);
+		}
+		return c;
+	}
+
+	private int indexOf(long value) {
+		if (value < subBucketCount) {
+			return (int) value;
+		}
+		// value は [2^(precisionBits+g-1), 2^(precisionBits+g)) にあり、2^g 刻みで数える
+		int shift = 64 - Long.numberOfLeadingZeros(value) - precisionBits;
+		int sub = (int) (value >>> shift);
+		return subBucketCount + (shift - 1) * halfCount + (sub - halfCount);
+	}
+
+	private long lowestEquivalent(int index) {
+		if (index < subBucketCount) {
+			return index;
+		}
+		int shift = (index - subBucketCount) / halfCount + 1;
+		long sub = (index - subBucketCount) % halfCount + halfCount;
+		return sub << shift;
+	}
+
+	private long highestEquivalent(int index) {
+		if (index < subBucketCount) {
+			return index;
+		}
+		int shift = (index - subBucketCount) / halfCount + 1;
+		return lowestEquivalent(index) + (1L << shift) - 1;
+	}
+
+	private void updateMin(long value) {
+		long current = min.get();
+		while (value < current && !min.compareAndSet(current, value)) {
+			current = min.get();
+		}
+	}
+
+	private void updateMax(long value) {
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+}
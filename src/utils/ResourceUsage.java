@@ -0,0 +1,186 @@
+package utils;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 経過時間・全スレッドのCPU時間と割り当てバイト数と、JVM全体のGC回数/時間のスナップショット。
+ * {@link #since(ResourceUsage)} で2時点の差分を取ると、処理がなぜ遅いのか(CPUか割り当てかGCか)が見える。
+ * CPU時間と割り当てはスレッドプールに投げた処理も含めるため、生きている全スレッドの合計で数える。
+ * 終了したスレッドの値は取得できないので、{@link #countingThreadFactory()} のスレッドは終了直前に自分の分を足し込む。
+ * それ以外のスレッドが区間中に終了したときは、CPU時間と割り当ての差分は不明(-1)になる。
+ */
+public final class ResourceUsage {
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	// HotSpot 拡張が使えない JVM では割り当てバイト数は -1 になる
+	private static final com.sun.management.ThreadMXBean HOTSPOT_THREADS = hotspotThreads();
+
+	// countingThreadFactory のスレッドが終了直前に足し込んだ分。スナップショットと足し込みはこのロックで直列化する
+	private static final Object EXITED_LOCK = new Object();
+	private static long exitedCpuNanos;
+	private static long exitedAllocatedBytes;
+	private static long exitedThreads;
+	// 足し込み済みでまだ終了しきっていないスレッド。生きているスレッドとして二重に数えない
+	private static final Set<Long> accountedThreadIds = new HashSet<>();
+
+	private final long wallNanos;
+	private final long cpuNanos;
+	private final long allocatedBytes;
+	// 起動したスレッドの累計から、生きているものと足し込み済みのものを引いた数(区間中に値が失われたスレッドを見つけるため)
+	private final long lostThreads;
+	private final long gcCount;
+	private final long gcTimeMillis;
+
+	private ResourceUsage(long wallNanos, long cpuNanos, long allocatedBytes, long lostThreads, long gcCount,
+			long gcTimeMillis) {
+		this.wallNanos = wallNanos;
+		this.cpuNanos = cpuNanos;
+		this.allocatedBytes = allocatedBytes;
+		this.lostThreads = lostThreads;
+		this.gcCount = gcCount;
+		this.gcTimeMillis = gcTimeMillis;
+	}
+
+	public static ResourceUsage now() {
+		long gcCount = 0;
+		long gcTime = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			// 取得できないコレクタは -1 を返すので足さない
+			gcCount += Math.max(gc.getCollectionCount(), 0);
+			gcTime += Math.max(gc.getCollectionTime(), 0);
+		}
+		synchronized (EXITED_LOCK) {
+			long started = THREADS.getTotalStartedThreadCount();
+			long[] ids = liveUnaccountedThreadIds();
+			long cpu = sumCpuNanos(ids);
+			long allocated = sumAllocatedBytes(ids);
+			return new ResourceUsage(System.nanoTime(),
+					(cpu < 0) ? -1 : cpu + exitedCpuNanos,
+					(allocated < 0) ? -1 : allocated + exitedAllocatedBytes,
+					started - ids.length - exitedThreads,
+					gcCount,
+					gcTime);
+		}
+	}
+
+	/**
+	 * start から現在(this)までの差分を返す。
+	 */
+	public ResourceUsage since(ResourceUsage start) {
+		// 足し込まずに終了したスレッドがあれば、その分のCPU時間と割り当ては数えられていない
+		boolean noneLost = lostThreads == start.lostThreads;
+		return new ResourceUsage(
+				wallNanos - start.wallNanos,
+				(noneLost && cpuNanos >= 0 && start.cpuNanos >= 0) ? cpuNanos - start.cpuNanos : -1,
+				(noneLost && allocatedBytes >= 0 && start.allocatedBytes >= 0)
+						? allocatedBytes - start.allocatedBytes
+						: -1,
+				lostThreads,
+				gcCount - start.gcCount,
+				gcTimeMillis - start.gcTimeMillis);
+	}
+
+	/**
+	 * 終了する直前に、そのスレッドのCPU時間と割り当てバイト数を足し込むスレッドを作る。
+	 * 計測区間の中で作って終了させるプールに渡すと、区間の差分が不明にならない。
+	 */
+	public static ThreadFactory countingThreadFactory() {
+		ThreadFactory base = Executors.defaultThreadFactory();
+		return task -> base.newThread(() -> {
+			try {
+				task.run();
+			} finally {
+				recordExit();
+			}
+		});
+	}
+
+	private static void recordExit() {
+		long cpu = THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+		long allocated = (HOTSPOT_THREADS != null) ? HOTSPOT_THREADS.getCurrentThreadAllocatedBytes() : 0;
+		synchronized (EXITED_LOCK) {
+			exitedCpuNanos += cpu;
+			exitedAllocatedBytes += allocated;
+			exitedThreads++;
+			accountedThreadIds.add(Thread.currentThread().getId());
+		}
+	}
+
+	// EXITED_LOCK を持って呼ぶ。終了しきった足し込み済みスレッドはここで忘れる
+	private static long[] liveUnaccountedThreadIds() {
+		long[] all = THREADS.getAllThreadIds();
+		Arrays.sort(all);
+		accountedThreadIds.removeIf(id -> Arrays.binarySearch(all, id) < 0);
+		return Arrays.stream(all).filter(id -> !accountedThreadIds.contains(id)).toArray();
+	}
+
+	private static long sumCpuNanos(long[] ids) {
+		if (!THREADS.isThreadCpuTimeSupported() || !THREADS.isThreadCpuTimeEnabled()) {
+			return -1;
+		}
+		long[] times = (HOTSPOT_THREADS != null) ? HOTSPOT_THREADS.getThreadCpuTime(ids) : cpuTimesOneByOne(ids);
+		return sum(times);
+	}
+
+	private static long[] cpuTimesOneByOne(long[] ids) {
+		long[] times = new long[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			times[i] = THREADS.getThreadCpuTime(ids[i]);
+		}
+		return times;
+	}
+
+	private static long sumAllocatedBytes(long[] ids) {
+		return (HOTSPOT_THREADS == null) ? -1 : sum(HOTSPOT_THREADS.getThreadAllocatedBytes(ids));
+	}
+
+	// 取得の途中で終了したスレッドは -1 なので、そのときは合計も不明にする
+	private static long sum(long[] values) {
+		long total = 0;
+		for (long value : values) {
+			if (value < 0) {
+				return -1;
+			}
+			total += value;
+		}
+		return total;
+	}
+
+	public long getWallNanos() {
+		return wallNanos;
+	}
+
+	public long getCpuNanos() {
+		return cpuNanos;
+	}
+
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	public long getGcCount() {
+		return gcCount;
+	}
+
+	public long getGcTimeMillis() {
+		return gcTimeMillis;
+	}
+
+	private static com.sun.management.ThreadMXBean hotspotThreads() {
+		if (THREADS instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) THREADS;
+			if (bean.isThreadAllocatedMemorySupported()) {
+				bean.setThreadAllocatedMemoryEnabled(true);
+				return bean;
+			}
+		}
+		return null;
+	}
+}
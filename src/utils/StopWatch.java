@@ -1,15 +1,82 @@
 package utils;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
 public class StopWatch {
-	private long startTime;
+	private ResourceUsage start;
+	private ScopeEvent event;
 
 	public void start() {
-		this.startTime = System.nanoTime();
+		// JFR で記録していないときは begin/commit ともほぼ何もしない
+		this.event = new ScopeEvent();
+		event.begin();
+		// ピーク使用量は JVM 全体の値なので、区間の開始でリセットしておく
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+		this.start = ResourceUsage.now();
 	}
 
 	public void stop(String label) {
-		long endTime = System.nanoTime();
-		double duration = (endTime - startTime) / 1_000_000.0;
-		System.out.printf("[%s] 実行時間: %.3f ms%n", label, duration);
+		stop(label, 1);
+	}
+
+	// operations: 計測区間で処理した件数。割り当てバイト数を1件あたりに換算して表示する
+	public void stop(String label, long operations) {
+		ResourceUsage usage = ResourceUsage.now().since(start);
+		event.label = label;
+		event.commit();
+		double duration = usage.getWallNanos() / 1_000_000.0;
+		System.out.printf("[%s] 実行時間: %.3f ms, CPU: %s, 割り当て: %s/op, GC: %d回 (%d ms), ピークヒープ: %s%n",
+				label,
+				duration,
+				(usage.getCpuNanos() < 0) ? "n/a" : String.format("%.3f ms", usage.getCpuNanos() / 1_000_000.0),
+				formatBytes(usage.getAllocatedBytes(), operations),
+				usage.getGcCount(),
+				usage.getGcTimeMillis(),
+				formatBytes(peakHeapBytes(), 1));
+	}
+
+	// 各ヒーププールのピーク使用量の合計。プールごとにピークの時点は異なるので上限の目安として使う
+	private static long peakHeapBytes() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	static String formatBytes(double bytes, long operations) {
+		if (bytes < 0) {
+			return "n/a";
+		}
+		double perOp = bytes / operations;
+		if (perOp >= 1024 * 1024) {
+			return String.format("%.1f MB", perOp / (1024 * 1024));
+		}
+		if (perOp >= 1024) {
+			return String.format("%.1f KB", perOp / 1024);
+		}
+		return String.format("%.1f B", perOp);
+	}
+
+	// start() から stop(label) までを1つの JFR イベントとして記録する(スレッドと所要時間は JFR が付ける)
+	@Name("utils.StopWatch")
+	@Label("StopWatch")
+	@Category("Effective Java")
+	static class ScopeEvent extends Event {
+		@Label("Label")
+		String label;
 	}
 }